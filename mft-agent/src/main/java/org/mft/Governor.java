@@ -0,0 +1,105 @@
+package org.mft;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the rate of recorded events and backlog of the writer and reduces the tracing when the tracer
+ * cannot keep up: first stackpoints are dropped, then checkpoints and finally only some managed contexts
+ * are traced. The level is raised back one step after the load stays below half of the limits for a while.
+ * The level is read by application threads, the rest is used by SpanWriter only.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+class Governor {
+   enum Level {
+      FULL,
+      NO_STACKPOINTS,
+      NO_CHECKPOINTS,
+      SAMPLING
+   }
+
+   private static final Level[] LEVELS = Level.values();
+   private static final long PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+   private static final long RECOVERY_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+   private final long maxEventRate;
+   private final double maxBacklog;
+   private final Sampler sampler;
+   private volatile Level level = Level.FULL;
+   private long periodStart = System.nanoTime();
+   private long periodEvents;
+   private long calmSince = periodStart;
+
+   private Governor(long maxEventRate, double maxBacklog, int sampling) {
+      this.maxEventRate = maxEventRate;
+      this.maxBacklog = maxBacklog;
+      this.sampler = Sampler.ratio(sampling);
+   }
+
+   /**
+    * @return Governor if enabled by org.mft.governor or null.
+    */
+   static Governor create() {
+      if (System.getProperty("org.mft.governor") == null) {
+         return null;
+      }
+      return new Governor(Long.getLong("org.mft.maxEventRate", 1_000_000),
+            Double.parseDouble(System.getProperty("org.mft.maxBacklog", "0.5")),
+            Integer.getInteger("org.mft.governorSampling", 10));
+   }
+
+   Level level() {
+      return level;
+   }
+
+   boolean recordStackpoints() {
+      return level == Level.FULL;
+   }
+
+   boolean recordCheckpoints() {
+      return level.compareTo(Level.NO_CHECKPOINTS) < 0;
+   }
+
+   /**
+    * @return False if the managed context should not be traced.
+    */
+   boolean sample() {
+      return level != Level.SAMPLING || sampler.sample();
+   }
+
+   /**
+    * @param drainedEvents Events drained since last update
+    * @param backlog Finished spans and other records waiting for the writer
+    * @param capacity Capacity of the persistence queue
+    * @return Description of the new level or null if the level has not changed.
+    */
+   String update(int drainedEvents, int backlog, int capacity) {
+      periodEvents += drainedEvents;
+      long now = System.nanoTime();
+      long elapsed = now - periodStart;
+      if (elapsed < PERIOD_NANOS) {
+         return null;
+      }
+      long eventRate = periodEvents * TimeUnit.SECONDS.toNanos(1) / elapsed;
+      double fill = (double) backlog / capacity;
+      periodStart = now;
+      periodEvents = 0;
+      Level next = level;
+      if (eventRate > maxEventRate || fill > maxBacklog) {
+         calmSince = now;
+         if (level != Level.SAMPLING) {
+            next = LEVELS[level.ordinal() + 1];
+         }
+      } else if (eventRate > maxEventRate / 2 || fill > maxBacklog / 2) {
+         calmSince = now;
+      } else if (level != Level.FULL && now - calmSince >= RECOVERY_NANOS) {
+         calmSince = now;
+         next = LEVELS[level.ordinal() - 1];
+      }
+      if (next == level) {
+         return null;
+      }
+      level = next;
+      return String.format("%s (%d events/s, backlog %d)", next, eventRate, backlog);
+   }
+}
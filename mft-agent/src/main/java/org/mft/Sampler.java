@@ -0,0 +1,76 @@
+package org.mft;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether the control flow started by {@link Tracer#createManagedContext()} should be traced.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+abstract class Sampler {
+   abstract boolean sample();
+
+   /**
+    * @return Sampler configured through org.mft.sampling (trace 1 in N contexts) or org.mft.samplingRate
+    *         (trace at most N contexts per second), null if all contexts should be traced.
+    */
+   static Sampler create() {
+      Integer ratio = Integer.getInteger("org.mft.sampling");
+      Integer rate = Integer.getInteger("org.mft.samplingRate");
+      if (ratio != null && rate != null) {
+         throw new IllegalArgumentException("Cannot use both org.mft.sampling and org.mft.samplingRate");
+      } else if (ratio != null && ratio > 1) {
+         return new Ratio(ratio);
+      } else if (rate != null && rate > 0) {
+         return new RateLimit(rate);
+      }
+      return null;
+   }
+
+   static Sampler ratio(int ratio) {
+      return new Ratio(ratio);
+   }
+
+   private static class Ratio extends Sampler {
+      private final int ratio;
+
+      Ratio(int ratio) {
+         this.ratio = ratio;
+      }
+
+      @Override
+      boolean sample() {
+         // shared counter would be contended
+         return ThreadLocalRandom.current().nextInt(ratio) == 0;
+      }
+
+      @Override
+      public String toString() {
+         return "1 in " + ratio;
+      }
+   }
+
+   private static class RateLimit extends Sampler {
+      private final long intervalNanos;
+      private final AtomicLong nextSample = new AtomicLong(System.nanoTime());
+
+      RateLimit(int perSecond) {
+         intervalNanos = TimeUnit.SECONDS.toNanos(1) / perSecond;
+      }
+
+      @Override
+      boolean sample() {
+         long now = System.nanoTime();
+         long next = nextSample.get();
+         // the CAS fails if someone else has just sampled
+         return now - next >= 0 && nextSample.compareAndSet(next, now + intervalNanos);
+      }
+
+      @Override
+      public String toString() {
+         return TimeUnit.SECONDS.toNanos(1) / intervalNanos + " per second";
+      }
+   }
+}
@@ -0,0 +1,74 @@
+package org.mft;
+
+import org.mft.objects.StackDefinition;
+import org.mft.persistence.PersistenceQueue;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns stacks captured by {@link Tracer#stackpoint()}. A new stack is formatted only once and its
+ * definition is queued for persisting before any span that refers to it.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+class StackTable {
+   // StackTable.capture and Tracer.stackpoint
+   private static final int SKIPPED_FRAMES = 2;
+
+   private final ConcurrentHashMap<Key, StackDefinition> stacks = new ConcurrentHashMap<>();
+   private final AtomicInteger nextId = new AtomicInteger();
+   private final int maxDepth = Integer.getInteger("org.mft.stackDepth", 32);
+   private final int maxStacks = Integer.getInteger("org.mft.maxStacks", 65536);
+
+   /**
+    * @return Interned stack or the formatted stack if there are too many different stacks
+    *         or the definition could not be queued.
+    */
+   Object capture(PersistenceQueue persistenceQueue) {
+      StackTraceElement[] trace = new Throwable().getStackTrace();
+      int depth = Math.min(trace.length - SKIPPED_FRAMES, maxDepth);
+      StackTraceElement[] frames = Arrays.copyOfRange(trace, SKIPPED_FRAMES, SKIPPED_FRAMES + depth);
+      Key key = new Key(frames);
+      StackDefinition definition = stacks.get(key);
+      if (definition != null) {
+         return definition;
+      } else if (stacks.size() >= maxStacks) {
+         return Arrays.toString(frames);
+      }
+      definition = new StackDefinition(nextId.getAndIncrement(), Arrays.toString(frames));
+      // queued before it's published so that other threads cannot refer to it earlier
+      if (!persistenceQueue.offer(definition)) {
+         // dropped on overflow, spans must not refer to a stack that is never written
+         return Arrays.toString(frames);
+      }
+      StackDefinition prev = stacks.putIfAbsent(key, definition);
+      // if we've lost the race our definition is written but not used
+      return prev != null ? prev : definition;
+   }
+
+   int size() {
+      return stacks.size();
+   }
+
+   private static class Key {
+      private final StackTraceElement[] frames;
+      private final int hashCode;
+
+      Key(StackTraceElement[] frames) {
+         this.frames = frames;
+         this.hashCode = Arrays.hashCode(frames);
+      }
+
+      @Override
+      public int hashCode() {
+         return hashCode;
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+         return obj instanceof Key && hashCode == ((Key) obj).hashCode && Arrays.equals(frames, ((Key) obj).frames);
+      }
+   }
+}
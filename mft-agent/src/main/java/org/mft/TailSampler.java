@@ -0,0 +1,92 @@
+package org.mft;
+
+import org.mft.objects.Event;
+import org.mft.objects.EventStore;
+import org.mft.objects.Span;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Decides in SpanWriter which finished spans are worth persisting: only those that took at least
+ * org.mft.slowSpanMicros or have a trace tag or checkpoint matching org.mft.keepSpanPattern.
+ * The rest is dropped and only counted. Not thread-safe, used by the writer thread only.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+class TailSampler {
+   private final long minDurationNanos;
+   private final Pattern pattern;
+   private final Map<String, long[]> droppedByTraceTag = new TreeMap<>();
+   private long kept;
+   private long dropped;
+
+   private TailSampler(long minDurationNanos, Pattern pattern) {
+      this.minDurationNanos = minDurationNanos;
+      this.pattern = pattern;
+   }
+
+   /**
+    * @return Configured sampler or null if all spans should be persisted.
+    */
+   static TailSampler create() {
+      Long minDurationMicros = Long.getLong("org.mft.slowSpanMicros");
+      String pattern = System.getProperty("org.mft.keepSpanPattern");
+      if (minDurationMicros == null && pattern == null) {
+         return null;
+      }
+      return new TailSampler(minDurationMicros == null ? Long.MAX_VALUE : TimeUnit.MICROSECONDS.toNanos(minDurationMicros),
+            pattern == null ? null : Pattern.compile(pattern));
+   }
+
+   /**
+    * The events of the span and all its children must be already drained from EventBuffers.
+    */
+   boolean keep(Span root) {
+      long[] range = { Long.MAX_VALUE, Long.MIN_VALUE };
+      if (scan(root, range) || range[1] - range[0] >= minDurationNanos) {
+         ++kept;
+         return true;
+      }
+      ++dropped;
+      droppedByTraceTag.computeIfAbsent(root.getTraceTag(), tag -> new long[1])[0]++;
+      return false;
+   }
+
+   /**
+    * Updates range of timestamps in the span tree.
+    *
+    * @return True if some event matches the pattern.
+    */
+   private boolean scan(Span span, long[] range) {
+      EventStore events = span.getEventStore();
+      for (int i = 0; i < events.size(); ++i) {
+         long timestamp = events.timestamp(i);
+         range[0] = Math.min(range[0], timestamp);
+         range[1] = Math.max(range[1], timestamp);
+         if (pattern != null) {
+            Event.Type type = events.type(i);
+            if ((type == Event.Type.TRACE_TAG || type == Event.Type.CHECKPOINT)
+                  && pattern.matcher(String.valueOf(events.formattedPayload(i))).find()) {
+               return true;
+            }
+         }
+      }
+      for (Span child : span.getChildren()) {
+         if (scan(child, range)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   void report(PrintStream out) {
+      out.println("Tail sampling kept " + kept + " and dropped " + dropped + " finished spans.");
+      for (Map.Entry<String, long[]> entry : droppedByTraceTag.entrySet()) {
+         out.println("\t" + entry.getKey() + ": " + entry.getValue()[0] + " dropped");
+      }
+   }
+}
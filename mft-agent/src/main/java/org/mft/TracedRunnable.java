@@ -0,0 +1,52 @@
+package org.mft;
+
+import org.mft.objects.Span;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Task handed over to an executor, carrying the span that should continue when the task is executed.
+ * The span is claimed exactly once, either when the task is run or when it fails to be executed.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+class TracedRunnable implements Runnable {
+   private static final AtomicReferenceFieldUpdater<TracedRunnable, Span> SPAN_UPDATER
+         = AtomicReferenceFieldUpdater.newUpdater(TracedRunnable.class, Span.class, "span");
+   static final Tracer tracer = Tracer.getInstance();
+
+   final Runnable task;
+   private volatile Span span;
+
+   TracedRunnable(Runnable task, Span span) {
+      this.task = task;
+      this.span = span;
+   }
+
+   /**
+    * @return The span or null if it was already claimed.
+    */
+   Span claim() {
+      return span == null ? null : SPAN_UPDATER.getAndSet(this, null);
+   }
+
+   @Override
+   public void run() {
+      Span span = claim();
+      if (span == null) {
+         task.run();
+         return;
+      }
+      tracer.directHandoverSuccess(span, task);
+      try {
+         task.run();
+      } finally {
+         tracer.threadProcessingCompleted();
+      }
+   }
+
+   @Override
+   public String toString() {
+      return task.toString();
+   }
+}
@@ -0,0 +1,77 @@
+package org.mft;
+
+import org.mft.objects.Span;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Scheduled task carrying the span; the executor keeps this instance in its queue and returns it
+ * to the caller instead of the decorated task.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+class TracedScheduledFuture<V> extends TracedRunnable implements RunnableScheduledFuture<V> {
+   private final RunnableScheduledFuture<V> future;
+
+   TracedScheduledFuture(RunnableScheduledFuture<V> future, Span span) {
+      super(future, span);
+      this.future = future;
+   }
+
+   @Override
+   public void run() {
+      // the future could be cancelled directly by someone holding the delegate
+      if (future.isCancelled()) {
+         tracer.wrappedHandoverFailure(this);
+      }
+      super.run();
+   }
+
+   @Override
+   public boolean isPeriodic() {
+      return future.isPeriodic();
+   }
+
+   @Override
+   public long getDelay(TimeUnit unit) {
+      return future.getDelay(unit);
+   }
+
+   @Override
+   public int compareTo(Delayed o) {
+      return future.compareTo(o instanceof TracedScheduledFuture ? ((TracedScheduledFuture) o).future : o);
+   }
+
+   @Override
+   public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = future.cancel(mayInterruptIfRunning);
+      if (cancelled) {
+         tracer.wrappedHandoverFailure(this);
+      }
+      return cancelled;
+   }
+
+   @Override
+   public boolean isCancelled() {
+      return future.isCancelled();
+   }
+
+   @Override
+   public boolean isDone() {
+      return future.isDone();
+   }
+
+   @Override
+   public V get() throws InterruptedException, ExecutionException {
+      return future.get();
+   }
+
+   @Override
+   public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+      return future.get(timeout, unit);
+   }
+}
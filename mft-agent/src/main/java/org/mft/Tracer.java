@@ -22,30 +22,36 @@
 
 package org.mft;
 
-import org.mft.objects.Annotation;
 import org.mft.objects.BatchSpan;
+import org.mft.objects.DeferredMessage;
 import org.mft.objects.Event;
+import org.mft.objects.EventBuffer;
+import org.mft.objects.HandoverTable;
 import org.mft.objects.Header;
+import org.mft.objects.Label;
 import org.mft.objects.Message;
 import org.mft.objects.MessageId;
 import org.mft.objects.Span;
 import org.mft.objects.ThreadChange;
 import org.mft.persistence.BinaryPersister;
 import org.mft.persistence.Persistable;
+import org.mft.persistence.PersistenceQueue;
 import org.mft.persistence.Persister;
 import org.mft.persistence.TextPersister;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.RunnableScheduledFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
 
 /**
  * This class should track the execution path from the external request
@@ -54,20 +60,36 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @author Radim Vansa &lt;rvansa@redhat.com&gt;
  */
 public class Tracer {
-   // we need ConcurrentMap + IdentityHashMap
-   private static ConcurrentHashMap<Annotation, Span> spans = new ConcurrentHashMap<>();
-   private static ConcurrentHashMap<Annotation, AtomicInteger> referenceCounters = new ConcurrentHashMap<>();
-   private static ConcurrentLinkedQueue<Persistable> persistenceQueue = new ConcurrentLinkedQueue<>();
+   // used by compiled instrumentation, the state is static anyway
+   private static final Tracer INSTANCE = new Tracer();
+   private static HandoverTable handovers = new HandoverTable();
+   private static PersistenceQueue persistenceQueue = new PersistenceQueue(
+         Integer.getInteger("org.mft.queueCapacity", 65536),
+         PersistenceQueue.OverflowPolicy.parse(System.getProperty("org.mft.queueOverflow", "block")));
    private static final boolean logAnnotations = Boolean.getBoolean("org.mft.logAnnotations");
+   private static final Label BYTES = Label.of(Label.Kind.QUANTITY, "b");
+   private static final Sampler sampler = Sampler.create();
+   private static final TailSampler tailSampler = TailSampler.create();
+   private static final Governor governor = Governor.create();
+   private static final StackTable stackTable = new StackTable();
+   // handed over instead of span when the flow is not sampled, never persisted
+   private static final Span UNSAMPLED = new Span();
    private static ConcurrentHashMap<Object, String> markedObjects = new ConcurrentHashMap<>();
+   private static final TracerStatistics statistics = new TracerStatistics(persistenceQueue, handovers, markedObjects, governor);
    private static ThreadLocal<Context> context = new ThreadLocal<>();
    private static ThreadLocal<List<Span>> bundledSpans = new ThreadLocal<>();
    private static volatile boolean running = true;
+   private static boolean writerFinished = false;
+   private static final int WRITER_BATCH_SIZE = 1024;
+   // even if no spans are finished the writer has to drain EventBuffers
+   private static final long WRITER_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
 
    private static class Context {
       Span span;
       int counter;
       boolean managed;
+      // the flow is not traced; span is null and the hooks just return
+      boolean unsampled;
       String mark;
    }
 
@@ -87,7 +109,12 @@ public class Tracer {
                   path = Paths.get(dir, "span." + suffix + ext).toString();
                } else {
                   try {
-                     path = File.createTempFile("span.", ext, new File(dir)).getAbsolutePath();
+                     File file = File.createTempFile("span.", ext, new File(dir));
+                     path = file.getAbsolutePath();
+                     if (binarySpans) {
+                        // binary spans are written into path-derived segments, we need just the unique name
+                        file.delete();
+                     }
                   } catch (IOException e) {
                      path = "/tmp/span" + ext;
                   }
@@ -96,20 +123,42 @@ public class Tracer {
             Persister persister = binarySpans ? new BinaryPersister() : new TextPersister();
             try {
                persister.openForWrite(path, new Header());
+               registerMBean();
+               if (governor != null) {
+                  persister.write(new ThreadChange(getName(), System.nanoTime(), getId()));
+               }
+               List<Persistable> batch = new ArrayList<>();
                while (running || !persistenceQueue.isEmpty()) {
-                  Persistable object;
-                  while ((object = persistenceQueue.poll()) != null) {
-                     object.accept(persister);
+                  long busyStart = System.nanoTime();
+                  if (persistenceQueue.drainTo(batch, WRITER_BATCH_SIZE) == 0) {
+                     govern(persister, EventBuffer.drainAll(statistics.drainedEvents));
+                     statistics.update(persister, System.nanoTime() - busyStart);
+                     persistenceQueue.await(WRITER_IDLE_NANOS);
+                     if (Thread.interrupted()) {
+                        break;
+                     }
+                     continue;
                   }
-                  try {
-                     Thread.sleep(1);
-                  } catch (InterruptedException e) {
-                     break;
+                  // all events of the finished spans were published before these got into the queue
+                  govern(persister, EventBuffer.drainAll(statistics.drainedEvents));
+                  for (Persistable persistable : batch) {
+                     boolean sampledSpan = persistable instanceof Span && !((Span) persistable).isUnsampled();
+                     if (sampledSpan && tailSampler != null && !tailSampler.keep((Span) persistable)) {
+                        statistics.spanSampledOut();
+                        continue;
+                     }
+                     persistable.accept(persister);
+                     if (sampledSpan) {
+                        statistics.spanPersisted();
+                     }
                   }
+                  batch.clear();
+                  statistics.update(persister, System.nanoTime() - busyStart);
                }
             } catch (IOException e) {
                e.printStackTrace();
             } finally {
+               persistenceQueue.close();
                try {
                   persister.close();
                } catch (IOException e) {
@@ -117,6 +166,7 @@ public class Tracer {
                }
             }
             synchronized (Tracer.class) {
+               writerFinished = true;
                Tracer.class.notifyAll();
             }
          }
@@ -128,51 +178,77 @@ public class Tracer {
          @Override
          public void run() {
             running = false;
+            persistenceQueue.wakeUp();
             synchronized (Tracer.class) {
                try {
-                  Tracer.class.wait();
+                  // the writer is not sleeping anymore and could finish before we get here
+                  while (!writerFinished) {
+                     Tracer.class.wait();
+                  }
                } catch (InterruptedException e) {
                   System.err.println("Waiting for writer interrupted.");
                }
             }
-            reportReferenceCounters();
-            reportSpans();
+            reportHandovers();
+            if (sampler != null) {
+               System.err.println("Sampled " + sampler + " managed contexts.");
+            }
+            if (tailSampler != null) {
+               tailSampler.report(System.err);
+            }
             System.err.println(markedObjects.size() + " marked objects");
             System.err.println(persistenceQueue.size() + " not written finished spans.");
+            System.err.println(persistenceQueue.getDroppedSpans() + " finished spans and "
+                  + persistenceQueue.getDroppedOther() + " other records dropped due to full persistence queue.");
             Span.debugPrintUnfinished();
          }
 
-         private void reportSpans() {
-            System.err.println(spans.size() + " unfinished spans");
-            int counter = 0;
-            for (Map.Entry<Annotation, Span> entry : spans.entrySet()) {
-               System.out.printf("%s:%08x (refcount=%s) -> ", entry.getKey().unwrap().getClass().getName(),
-                                 entry.getKey().hashCode(), referenceCounters.get(entry.getKey()));
-               entry.getValue().print(System.out, "");
-               if (++counter > 500) break; // shutdown hook must execute quickly
-            }
-            if (counter > 500) {
-               System.out.println("Too many unfinished spans, truncated...");
-            }
-         }
-
-         private void reportReferenceCounters() {
-            System.err.println(referenceCounters.size() + " not cleaned reference counters");
-            int counter = 0;
-            for (Map.Entry<Annotation, AtomicInteger> entry : referenceCounters.entrySet()) {
-               System.out.printf("%s:%08x -> %d\n",  entry.getKey().unwrap().getClass().getName(),
-                                 entry.getKey().hashCode(), entry.getValue().get());
-               if (++counter > 500) break; // shutdown hook must execute quickly
-            }
-            if (counter > 500) {
-               System.out.println("Too many references, truncated...");
+         private void reportHandovers() {
+            System.err.println(handovers.size() + " unfinished handovers");
+            int[] counter = new int[1];
+            handovers.forEach((key, span, refCount) -> {
+               System.out.printf("%s:%08x (refcount=%d) -> ", key.getClass().getName(),
+                                 System.identityHashCode(key), refCount);
+               span.print(System.out, "");
+               return ++counter[0] <= 500; // shutdown hook must execute quickly
+            });
+            if (counter[0] > 500) {
+               System.out.println("Too many unfinished handovers, truncated...");
             }
          }
       });
    }
 
+   private static void registerMBean() {
+      if (!Boolean.parseBoolean(System.getProperty("org.mft.jmx", "true"))) {
+         return;
+      }
+      try {
+         ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, new ObjectName("org.mft:type=Tracer"));
+      } catch (Exception e) {
+         System.err.println("Cannot register tracer MBean: " + e);
+      }
+   }
+
+   private static void govern(Persister persister, int drainedEvents) throws IOException {
+      if (governor == null) {
+         return;
+      }
+      String level = governor.update(drainedEvents, persistenceQueue.size(), persistenceQueue.capacity());
+      if (level != null) {
+         // standalone span, the processing shows when the traces were degraded
+         Span span = new Span();
+         span.addEvent(System.nanoTime(), Thread.currentThread().getId(), Event.Type.TRACER_LEVEL, level);
+         span.accept(persister);
+      }
+   }
+
+   public static Tracer getInstance() {
+      return INSTANCE;
+   }
+
    public void recordThreadName(Thread thread) {
-      persistenceQueue.add(new ThreadChange(thread.getName(), System.nanoTime(), thread.getId()));
+      persistenceQueue.offer(new ThreadChange(thread.getName(), System.nanoTime(), thread.getId()));
    }
 
    /**
@@ -186,11 +262,23 @@ public class Tracer {
             context.span.decrementRefCount(persistenceQueue);
             context.span = null;
             return;
+         } else if (context.unsampled) {
+            // nested context stays in the outer one
+            return;
          }
       } else {
          this.context.set(context = new Context());
       }
       context.managed = true;
+      context.unsampled = (sampler != null && !sampler.sample()) || (governor != null && !governor.sample());
+   }
+
+   /**
+    * @return False if the current control flow is not traced.
+    */
+   public boolean isSampled() {
+      Context context = this.context.get();
+      return context == null || !context.unsampled;
    }
 
    /**
@@ -206,11 +294,15 @@ public class Tracer {
          context.span = null;
       }
       context.managed = false;
+      context.unsampled = false;
    }
 
    public void incomingData(int length) {
       Context context = ensureContextSpan();
-      context.span.addEvent(Event.Type.INCOMING_DATA, length + " b");
+      if (context == null) {
+         return;
+      }
+      context.span.addEvent(Event.Type.INCOMING_DATA, BYTES, length);
       context.managed = true;
    }
 
@@ -228,22 +320,32 @@ public class Tracer {
     * @param o
     */
    public void threadHandoverStarted(Object o) {
-      Annotation annotation = Annotation.of(o);
-      incrementRefCount(annotation);
       Context context = ensureContextSpan();
+      if (context == null) {
+         handovers.increment(o, UNSAMPLED);
+         return;
+      }
       Span current = context.span.getCurrent();
-      Span prev = spans.putIfAbsent(annotation, current);
+      Span prev = handovers.increment(o, current);
       if (prev != null && prev != current) {
          throw new IllegalStateException(prev.toString());
       }
       context.span.incrementRefCount();
-      context.span.addEvent(Event.Type.THREAD_HANDOVER_STARTED, logAnnotation(o));
+      addAnnotation(context.span, Event.Type.THREAD_HANDOVER_STARTED, o);
    }
 
    public Object logAnnotation(Object annotation) {
       return logAnnotations ? String.format("%s:%08x", annotation.getClass().getName(), annotation.hashCode()) : annotation.hashCode();
    }
 
+   private static void addAnnotation(Span span, Event.Type type, Object annotation) {
+      if (logAnnotations) {
+         span.addEvent(type, String.format("%s:%08x", annotation.getClass().getName(), annotation.hashCode()));
+      } else {
+         span.addEvent(type, Label.IDENTITY_HASH, annotation.hashCode());
+      }
+   }
+
    /**
     * Use only when thread-local span has been transformed into non-thread-local
     * In fact this is used when we do threadHandoverStart but the span on the origin thread shouldn't continue because
@@ -266,6 +368,15 @@ public class Tracer {
     */
    public void threadProcessingCompleted() {
       Context context = this.context.get();
+      if (context != null && context.unsampled) {
+         if (context.counter > 0) {
+            --context.counter;
+         } else {
+            context.unsampled = false;
+            context.managed = false;
+         }
+         return;
+      }
       if (context == null || context.span == null) {
          return;
       }
@@ -287,7 +398,7 @@ public class Tracer {
       Context context = this.context.get();
 //      System.out.printf("XXX %d %s %s %d %s\n", Thread.currentThread().getId(), o.getClass().getName(), context != null, context != null ? context.counter : 0, context != null && context.span != null);
       if (context != null) {
-         if (context.span != null) {
+         if (context.span != null || context.unsampled) {
             // we are in Runnable.run() executed directly in thread which already has context
             // which will be followed by threadProcessingComplete()
             ++context.counter;
@@ -297,31 +408,106 @@ public class Tracer {
          this.context.set(context = new Context());
       }
 
-      context.span = decrementRefCount(Annotation.of(o));
+      context.span = handovers.decrement(o);
       if (context.span == null) {
          //debug(String.format("No span for %s:%08x", annotation.getClass().getName(), annotation.hashCode()));
          return;
+      } else if (context.span == UNSAMPLED) {
+         context.span = null;
+         context.unsampled = true;
+         context.managed = true;
+         return;
       }
 //      span.addEvent(Event.Type.THREAD_HANDOVER_SUCCESS, null);
-      context.span.addEvent(Event.Type.THREAD_HANDOVER_SUCCESS, logAnnotation(o));
+      addAnnotation(context.span, Event.Type.THREAD_HANDOVER_SUCCESS, o);
       context.managed = true;
    }
 
    public void threadHandoverFailure(Object o) {
-      Span span = decrementRefCount(Annotation.of(o));
-      if (span == null) {
+      Span span = handovers.decrement(o);
+      if (span == null || span == UNSAMPLED) {
          return;
       }
 //      span.addEvent(Event.Type.THREAD_HANDOVER_FAILURE, null);
-      span.addEvent(Event.Type.THREAD_HANDOVER_FAILURE, logAnnotation(o));
+      addAnnotation(span, Event.Type.THREAD_HANDOVER_FAILURE, o);
       span.decrementRefCount(persistenceQueue);
    }
 
+   /**
+    * Alternative to {@link #threadHandoverStarted(Object)} for executors: the task is wrapped into runnable
+    * that carries the span itself, therefore we don't need to look it up when the task is executed.
+    */
+   public Runnable wrapRunnable(Runnable task) {
+      if (task == null || task instanceof TracedRunnable) {
+         return task;
+      }
+      return new TracedRunnable(task, directHandoverStarted(task));
+   }
+
+   public <V> RunnableScheduledFuture<V> wrapScheduledTask(RunnableScheduledFuture<V> task) {
+      if (task == null || task instanceof TracedRunnable) {
+         return task;
+      }
+      return new TracedScheduledFuture<>(task, directHandoverStarted(task));
+   }
+
+   /**
+    * Counterpart of {@link #threadHandoverFailure(Object)} for tasks wrapped by {@link #wrapRunnable(Runnable)}
+    * or {@link #wrapScheduledTask(RunnableScheduledFuture)}, other objects are ignored.
+    */
+   public void wrappedHandoverFailure(Object o) {
+      if (o instanceof TracedRunnable) {
+         TracedRunnable wrapper = (TracedRunnable) o;
+         Span span = wrapper.claim();
+         if (span != null && span != UNSAMPLED) {
+            addAnnotation(span, Event.Type.THREAD_HANDOVER_FAILURE, wrapper.task);
+            span.decrementRefCount(persistenceQueue);
+         }
+      }
+   }
+
+   private Span directHandoverStarted(Object o) {
+      Context context = ensureContextSpan();
+      if (context == null) {
+         return UNSAMPLED;
+      }
+      context.span.incrementRefCount();
+      addAnnotation(context.span, Event.Type.THREAD_HANDOVER_STARTED, o);
+      return context.span.getCurrent();
+   }
+
+   void directHandoverSuccess(Span span, Object o) {
+      Context context = this.context.get();
+      if (context != null) {
+         if (context.span != null || context.unsampled) {
+            // the task is executed directly in thread which already has context, we won't switch the span
+            ++context.counter;
+            if (span != UNSAMPLED) {
+               span.decrementRefCount(persistenceQueue);
+            }
+            return;
+         }
+      } else {
+         this.context.set(context = new Context());
+      }
+      if (span == UNSAMPLED) {
+         context.unsampled = true;
+         context.managed = true;
+         return;
+      }
+      context.span = span;
+      addAnnotation(context.span, Event.Type.THREAD_HANDOVER_SUCCESS, o);
+      context.managed = true;
+   }
+
    /**
     * Forked span separates unrelated flows, while BatchSpan multiplexes processing that affects all child spans.
     */
    public void forkSpan() {
       Context context = this.context.get();
+      if (context != null && context.unsampled) {
+         return;
+      }
 
       //This might be wrongly inserted in Byteman rules
       if (context == null || context.span == null) {
@@ -334,7 +520,11 @@ public class Tracer {
    }
 
    public void unforkSpan() {
-      switchToParent(this.context.get());
+      Context context = this.context.get();
+      if (context != null && context.unsampled) {
+         return;
+      }
+      switchToParent(context);
       //System.err.printf("%s finish %08x %08x -> %08x\n", Thread.currentThread().getName(), contextAnnotation.get().hashCode(), current.hashCode(), current.getParent().hashCode());
    }
 
@@ -363,20 +553,35 @@ public class Tracer {
 
    public void handlingMessage(MessageId messageId) {
       Context context = this.context.get();
+      if (context != null && context.unsampled) {
+         return;
+      }
       //This might be wrongly inserted in Byteman rules
       if (context == null || context.span == null){
           throw new IllegalStateException("Possible problem with the rules: Invoking \"handlingMessage\" with empty contextSpan");
       }
+      if (!messageId.isSampled()) {
+         discardUnsampled(context);
+         return;
+      }
       context.span.addEvent(Event.Type.MSG_PROCESSING_START, messageId);
       context.span.setIncoming(messageId);
    }
 
    public void batchProcessingStart(List<MessageId> messageIds) {
       Context context = this.context.get();
+      if (context != null && context.unsampled) {
+         return;
+      }
       if (context == null || context.span == null) {
          System.err.println("Possible problem with the rules: Invoking \"batchProcessingStart\" with empty contextSpan");
          return;
       }
+      // batch mixing sampled and not sampled messages is traced
+      if (messageIds.stream().noneMatch(MessageId::isSampled)) {
+         discardUnsampled(context);
+         return;
+      }
 
       context.span = BatchSpan.newChild(context.span, messageIds);
       StringBuilder sb = new StringBuilder();
@@ -385,10 +590,25 @@ public class Tracer {
 
    public void batchProcessingEnd() {
       Context context = this.context.get();
+      if (context.unsampled) {
+         return;
+      }
       context.span.addEvent(Event.Type.BATCH_PROCESSING_END, null);
       switchToParent(context);
    }
 
+   /**
+    * The processed message belongs to a trace which is not sampled by the sender; the span was started
+    * before we could know that and it's dropped now.
+    */
+   private void discardUnsampled(Context context) {
+      context.span.setUnsampled();
+      context.span.decrementRefCount(persistenceQueue);
+      context.span = null;
+      context.unsampled = true;
+      context.managed = true;
+   }
+
    private void switchToParent(Context context) {
       if (context == null || context.span == null) {
          System.err.println("Possible problem with the rules: Invoking \"switchToParent\" with empty contextSpan");
@@ -403,6 +623,9 @@ public class Tracer {
 
    public void batchPush(MessageId messageId) {
       Context context = this.context.get();
+      if (context != null && context.unsampled) {
+         return;
+      }
 
       if (context == null || context.span == null) {
          System.err.println("Possible problem with the rules: Invoking \"batchPush\" with empty contextSpan");
@@ -410,7 +633,9 @@ public class Tracer {
       }
 
       if (context.span instanceof BatchSpan) {
-         ((BatchSpan) context.span).push(messageId);
+         // like forkSpan, the child is current until batchPop switches back to its parent
+         context.span = ((BatchSpan) context.span).getChild(messageId);
+         context.span.addEvent(Event.Type.MSG_PROCESSING_START, messageId);
       } else {
          throw new IllegalStateException("Current span is: " + context.span);
       }
@@ -418,14 +643,18 @@ public class Tracer {
 
    public void batchPop() {
       Context context = this.context.get();
+      if (context != null && context.unsampled) {
+         return;
+      }
 
       if (context == null || context.span == null) {
          System.err.println("Possible problem with the rules: Invoking \"batchPop\" with empty contextSpan");
          return;
       }
 
-      if (context.span instanceof BatchSpan) {
-         ((BatchSpan) context.span).pop();
+      if (context.span.getParent() instanceof BatchSpan) {
+         context.span.addEvent(Event.Type.MSG_PROCESSING_END, null);
+         context.span = context.span.getParent();
       } else {
          throw new IllegalStateException("Current span is: " + context.span);
       }
@@ -434,6 +663,7 @@ public class Tracer {
    public void discardMessages(List<MessageId> messageIds) {
       if (messageIds == null) return;
       Context context = ensureContextSpan();
+      if (context == null) return;
       for (MessageId messageId : messageIds) {
          Span child = new Span(context.span);
          child.setIncoming(messageId);
@@ -443,12 +673,14 @@ public class Tracer {
 
     /***
      *
-     * @return The current span, or creates new one and set it in contextSpan
+     * @return The current span, or creates new one and set it in contextSpan; null if the flow is not sampled
      */
    private Context ensureContextSpan() {
       Context context = this.context.get();
       if (context == null) {
          this.context.set(context = new Context());
+      } else if (context.unsampled) {
+         return null;
       }
       if (context.span == null) {
          context.span = new Span();
@@ -456,28 +688,6 @@ public class Tracer {
       return context;
    }
 
-   private void incrementRefCount(Annotation annotation) {
-      AtomicInteger refCount = referenceCounters.putIfAbsent(annotation, new AtomicInteger(1));
-      if (refCount != null) {
-         refCount.incrementAndGet();
-      }
-   }
-
-   private Span decrementRefCount(Annotation annotation) {
-      AtomicInteger refCount = referenceCounters.get(annotation);
-      if (refCount == null) {
-         return null;
-      }
-      int count = refCount.decrementAndGet();
-      if (count == 0) {
-         referenceCounters.remove(annotation);
-         Span span = spans.remove(annotation);
-         return span;
-      } else {
-         return spans.get(annotation);
-      }
-   }
-
    /**
     * We are about to send message (sync/async) to another node
     */
@@ -485,17 +695,22 @@ public class Tracer {
       Context context = this.context.get();
       if (context == null || context.span == null) {
          if (o != null) {
-            Annotation annotation = Annotation.of(o);
-            Span span = decrementRefCount(annotation);
+            Span span = handovers.decrement(o);
             if (span == null) {
                // this should not happen, but let's track it
                span = new Span();
+            } else if (span == UNSAMPLED) {
+               if (this.bundledSpans.get() == null) {
+                  // the message belongs to a trace that is not sampled, outcomingFinished has nothing to do
+                  this.bundledSpans.set(Collections.emptyList());
+               }
+               return false;
             }
             span.addOutcoming(messageId);
             span.addEvent(Event.Type.OUTCOMING_DATA_STARTED, new Message(messageId, System.identityHashCode(o)));
 
             List<Span> bundledSpans = this.bundledSpans.get();
-            if (bundledSpans == null) {
+            if (bundledSpans == null || bundledSpans.isEmpty()) {
                this.bundledSpans.set(Collections.singletonList(span));
             } else {
                if (bundledSpans.size() == 1) {
@@ -505,8 +720,8 @@ public class Tracer {
                }
             }
             return false;
-         } else {
-            context = ensureContextSpan();
+         } else if ((context = ensureContextSpan()) == null) {
+            return false;
          }
       }
       // sending data in processing thread
@@ -517,7 +732,9 @@ public class Tracer {
 
    public void outcomingStarted(List<Object> annotations, List<MessageId> messageIds) {
       Context context = this.context.get();
-      if (context != null && context.span != null) {
+      if (context != null && context.unsampled) {
+         return;
+      } else if (context != null && context.span != null) {
          // sending data in processing thread
          for (MessageId messageId : messageIds) {
             context.span.addOutcoming(messageId);
@@ -525,7 +742,7 @@ public class Tracer {
          }
       } else {
          List<Span> bundledSpans = this.bundledSpans.get();
-         if (bundledSpans == null) {
+         if (bundledSpans == null || bundledSpans.isEmpty()) {
             this.bundledSpans.set(bundledSpans = new ArrayList<>());
          } else {
             if (bundledSpans.size() == 1) {
@@ -538,10 +755,12 @@ public class Tracer {
          for (int i = 0; i < annotations.size(); ++i) {
             Object o = annotations.get(i);
             MessageId messageId = messageIds.get(i);
-            Span span = decrementRefCount(Annotation.of(o));
+            Span span = handovers.decrement(o);
             if (span == null) {
                // this should not happen, but let's track it
                span = new Span();
+            } else if (span == UNSAMPLED) {
+               continue;
             }
             span.addOutcoming(messageId);
             span.addEvent(Event.Type.OUTCOMING_DATA_STARTED, new Message(messageId, System.identityHashCode(o)));
@@ -552,7 +771,9 @@ public class Tracer {
 
    public void outcomingFinished() {
       Context context = this.context.get();
-      if (context != null && context.span != null) {
+      if (context != null && context.unsampled) {
+         return;
+      } else if (context != null && context.span != null) {
          context.span.addEvent(Event.Type.OUTCOMING_DATA_FINISHED, null);
          if (!context.managed) {
             context.span.decrementRefCount(persistenceQueue);
@@ -584,35 +805,128 @@ public class Tracer {
     * @param message
     */
    public void checkpoint(String message) {
+      Span span = checkpointSpan();
+      if (span != null) {
+         span.addEvent(Event.Type.CHECKPOINT, message);
+      }
+   }
+
+   /**
+    * Checkpoint "label value" that does not allocate the message.
+    */
+   public void checkpoint(String label, long value) {
+      Span span = checkpointSpan();
+      if (span != null) {
+         span.addEvent(Event.Type.CHECKPOINT, Label.of(Label.Kind.NUMBER, label), value);
+      }
+   }
+
+   /**
+    * Checkpoint "label #hash" identifying the key by its hash code, the key is not formatted.
+    */
+   public void checkpointKey(String label, Object key) {
+      Span span = checkpointSpan();
+      if (span != null) {
+         span.addEvent(Event.Type.CHECKPOINT, Label.of(Label.Kind.KEY_HASH, label), key == null ? 0 : key.hashCode());
+      }
+   }
+
+   /**
+    * One {@link #checkpointKey(String, Object)} for each of the keys.
+    */
+   public void checkpointKeys(String label, Collection<?> keys) {
+      Span span = checkpointSpan();
+      if (span != null) {
+         Label keyLabel = Label.of(Label.Kind.KEY_HASH, label);
+         for (Object key : keys) {
+            span.addEvent(Event.Type.CHECKPOINT, keyLabel, key == null ? 0 : key.hashCode());
+         }
+      }
+   }
+
+   /**
+    * Checkpoint rendered by the SpanWriter, see {@link DeferredMessage}. Separate overloads
+    * for one to three arguments let the rules avoid varargs.
+    */
+   public void checkpoint(String template, Object arg) {
+      Span span = checkpointSpan();
+      if (span != null) {
+         span.addEvent(Event.Type.CHECKPOINT, new DeferredMessage(template, arg));
+      }
+   }
+
+   public void checkpoint(String template, Object arg1, Object arg2) {
+      Span span = checkpointSpan();
+      if (span != null) {
+         span.addEvent(Event.Type.CHECKPOINT, new DeferredMessage(template, arg1, arg2));
+      }
+   }
+
+   public void checkpoint(String template, Object arg1, Object arg2, Object arg3) {
+      Span span = checkpointSpan();
+      if (span != null) {
+         span.addEvent(Event.Type.CHECKPOINT, new DeferredMessage(template, arg1, arg2, arg3));
+      }
+   }
+
+   public void checkpoint(String template, Object... args) {
+      Span span = checkpointSpan();
+      if (span != null) {
+         // the array is captured in place, callers passing an explicit array must not reuse it
+         span.addEvent(Event.Type.CHECKPOINT, new DeferredMessage(template, args));
+      }
+   }
+
+   private Span checkpointSpan() {
       Context context = this.context.get();
-      if (context == null) {
-        //  System.err.println("No span in checkpoint for: " + message);
-         return;
+      if (context == null || context.unsampled) {
+         return null;
+      }
+      if (governor != null && !governor.recordCheckpoints()) {
+         statistics.governedEvent();
+         return null;
       }
       if (context.span == null) {
          context.span = new Span();
       }
-      context.span.addEvent(Event.Type.CHECKPOINT, message);
+      return context.span;
    }
 
    public void checkpointWithClass(String message, Object object) {
-      checkpoint(message + object.getClass().getSimpleName());
+      // no placeholder, the class name is appended
+      checkpoint(message, object.getClass());
    }
 
    public void traceTag(String tag) {
-      ensureContextSpan().span.addEvent(Event.Type.TRACE_TAG, tag);
+      Context context = ensureContextSpan();
+      if (context != null) {
+         context.span.addEvent(Event.Type.TRACE_TAG, tag);
+      }
    }
 
    public void msgTag(String tag) {
-      ensureContextSpan().span.addEvent(Event.Type.MESSAGE_TAG, tag);
+      Context context = ensureContextSpan();
+      if (context != null) {
+         context.span.addEvent(Event.Type.MESSAGE_TAG, tag);
+      }
    }
 
    public void msgTagWithClass(Object object) {
-      ensureContextSpan().span.addEvent(Event.Type.MESSAGE_TAG, object.getClass().getSimpleName());
+      Context context = ensureContextSpan();
+      if (context != null) {
+         context.span.addEvent(Event.Type.MESSAGE_TAG, object.getClass().getSimpleName());
+      }
    }
 
    public void stackpoint() {
-      ensureContextSpan().span.addEvent(Event.Type.STACKPOINT, getStackTrace());
+      if (governor != null && !governor.recordStackpoints()) {
+         statistics.governedEvent();
+         return;
+      }
+      Context context = ensureContextSpan();
+      if (context != null) {
+         context.span.addEvent(Event.Type.STACKPOINT, stackTable.capture(persistenceQueue));
+      }
    }
 
    public static String getStackTrace() {
@@ -0,0 +1,70 @@
+package org.mft;
+
+import java.util.Map;
+
+/**
+ * Live statistics of the tracer, registered as org.mft:type=Tracer in the platform MBean server.
+ * Rates are computed by the SpanWriter about once per second.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+public interface TracerMXBean {
+   /**
+    * @return Events drained from the event buffers since start, by {@link org.mft.objects.Event.Type}.
+    */
+   Map<String, Long> getEventCounts();
+
+   /**
+    * @return Events per second by {@link org.mft.objects.Event.Type}.
+    */
+   Map<String, Long> getEventRates();
+
+   long getCreatedSpans();
+
+   /**
+    * @return Finished root spans written by the persister.
+    */
+   long getPersistedSpans();
+
+   /**
+    * @return Finished root spans not written due to tail sampling (org.mft.slowSpanMicros or org.mft.keepSpanPattern).
+    */
+   long getTailSampledOutSpans();
+
+   int getQueueDepth();
+
+   int getQueueCapacity();
+
+   /**
+    * @return Finished spans dropped because the persistence queue was full.
+    */
+   long getDroppedSpans();
+
+   /**
+    * @return Other records (thread names...) dropped because the persistence queue was full.
+    */
+   long getDroppedRecords();
+
+   /**
+    * @return Checkpoints and stackpoints not recorded because the governor has reduced the tracing level.
+    */
+   long getGovernedEvents();
+
+   long getWrittenBytes();
+
+   long getWrittenBytesRate();
+
+   /**
+    * @return Objects handed over to another thread that have not been picked up yet.
+    */
+   int getPendingHandovers();
+
+   int getMarkedObjects();
+
+   /**
+    * @return Time the SpanWriter spent draining events and persisting spans, not waiting for them.
+    */
+   long getWriterBusyMillis();
+
+   String getTracingLevel();
+}
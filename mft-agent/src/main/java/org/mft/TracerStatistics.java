@@ -0,0 +1,175 @@
+package org.mft;
+
+import org.mft.objects.Event;
+import org.mft.objects.HandoverTable;
+import org.mft.objects.Span;
+import org.mft.persistence.PersistenceQueue;
+import org.mft.persistence.Persister;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Implementation of {@link TracerMXBean}. The counters are updated by SpanWriter (single writer)
+ * except for governed events that are counted by application threads.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+class TracerStatistics implements TracerMXBean {
+   private static final Event.Type[] TYPES = Event.Type.values();
+   private static final long RATE_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+   private final PersistenceQueue persistenceQueue;
+   private final HandoverTable handovers;
+   private final ConcurrentHashMap<Object, String> markedObjects;
+   private final Governor governor;
+   private final LongAdder governedEvents = new LongAdder();
+   // accumulated by EventBuffer.drainAll, published to readers in update()
+   final long[] drainedEvents = new long[TYPES.length];
+   private final long[] periodStartEvents = new long[TYPES.length];
+   private long periodStart = System.nanoTime();
+   private long periodStartBytes;
+   private volatile long persistedSpans;
+   private volatile long tailSampledOutSpans;
+   private volatile long writtenBytes;
+   private volatile long writtenBytesRate;
+   private volatile long busyNanos;
+   private volatile Map<String, Long> eventCounts = Collections.emptyMap();
+   private volatile Map<String, Long> eventRates = Collections.emptyMap();
+
+   TracerStatistics(PersistenceQueue persistenceQueue, HandoverTable handovers,
+                    ConcurrentHashMap<Object, String> markedObjects, Governor governor) {
+      this.persistenceQueue = persistenceQueue;
+      this.handovers = handovers;
+      this.markedObjects = markedObjects;
+      this.governor = governor;
+   }
+
+   void governedEvent() {
+      governedEvents.increment();
+   }
+
+   void spanPersisted() {
+      persistedSpans++;
+   }
+
+   void spanSampledOut() {
+      tailSampledOutSpans++;
+   }
+
+   /**
+    * Called by the writer after each iteration.
+    *
+    * @param busyNanos Time the writer spent in this iteration.
+    */
+   void update(Persister persister, long busyNanos) {
+      this.busyNanos += busyNanos;
+      writtenBytes = persister.getWrittenBytes();
+      long now = System.nanoTime();
+      long elapsed = now - periodStart;
+      if (elapsed < RATE_PERIOD_NANOS) {
+         return;
+      }
+      Map<String, Long> counts = new LinkedHashMap<>();
+      Map<String, Long> rates = new LinkedHashMap<>();
+      for (Event.Type type : TYPES) {
+         long count = drainedEvents[type.ordinal()];
+         counts.put(type.toString(), count);
+         rates.put(type.toString(), perSecond(count - periodStartEvents[type.ordinal()], elapsed));
+         periodStartEvents[type.ordinal()] = count;
+      }
+      eventCounts = counts;
+      eventRates = rates;
+      writtenBytesRate = perSecond(writtenBytes - periodStartBytes, elapsed);
+      periodStartBytes = writtenBytes;
+      periodStart = now;
+   }
+
+   private static long perSecond(long value, long elapsedNanos) {
+      return value * RATE_PERIOD_NANOS / elapsedNanos;
+   }
+
+   @Override
+   public Map<String, Long> getEventCounts() {
+      return eventCounts;
+   }
+
+   @Override
+   public Map<String, Long> getEventRates() {
+      return eventRates;
+   }
+
+   @Override
+   public long getCreatedSpans() {
+      return Span.getCreatedCount();
+   }
+
+   @Override
+   public long getPersistedSpans() {
+      return persistedSpans;
+   }
+
+   @Override
+   public long getTailSampledOutSpans() {
+      return tailSampledOutSpans;
+   }
+
+   @Override
+   public int getQueueDepth() {
+      return persistenceQueue.size();
+   }
+
+   @Override
+   public int getQueueCapacity() {
+      return persistenceQueue.capacity();
+   }
+
+   @Override
+   public long getDroppedSpans() {
+      return persistenceQueue.getDroppedSpans();
+   }
+
+   @Override
+   public long getDroppedRecords() {
+      return persistenceQueue.getDroppedOther();
+   }
+
+   @Override
+   public long getGovernedEvents() {
+      return governedEvents.sum();
+   }
+
+   @Override
+   public long getWrittenBytes() {
+      return writtenBytes;
+   }
+
+   @Override
+   public long getWrittenBytesRate() {
+      return writtenBytesRate;
+   }
+
+   @Override
+   public int getPendingHandovers() {
+      return handovers.size();
+   }
+
+   @Override
+   public int getMarkedObjects() {
+      return markedObjects.size();
+   }
+
+   @Override
+   public long getWriterBusyMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(busyNanos);
+   }
+
+   @Override
+   public String getTracingLevel() {
+      return governor == null ? Governor.Level.FULL.toString() : governor.level().toString();
+   }
+}
@@ -22,28 +22,28 @@
 
 package org.mft.objects;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Span that may multiplex events to its children.
+ * Span that may multiplex events to its children. The child of the message being processed is held
+ * by the processing thread (as its current span), the batch itself keeps only the children by message.
  *
  * @author Radim Vansa &lt;rvansa@redhat.com&gt;
  */
 public class BatchSpan extends Span {
 
    private final Map<MessageId, Span> childrenMap;
-   private final Map<Thread, Span> currentSpan = new HashMap<>(4);
    private Span suppressed;
 
    private BatchSpan() {
-      childrenMap = new HashMap<>(4);
+      childrenMap = new ConcurrentHashMap<>(4);
    }
 
    private BatchSpan(Span parent, int numChildren) {
       super(parent);
-      childrenMap = new HashMap<>(numChildren);
+      childrenMap = new ConcurrentHashMap<>(numChildren);
    }
 
     /**
@@ -74,71 +74,21 @@ public class BatchSpan extends Span {
       return batchSpan;
    }
 
-   public synchronized void push(MessageId message) {
-      Span child = getChild(message);
-      currentSpan.put(Thread.currentThread(), child);
-      child.addEvent(Event.Type.MSG_PROCESSING_START, message);
-   }
-
-   public synchronized void pop() {
-      Span span = currentSpan.remove(Thread.currentThread());
-      if (span != null) {
-         span.addEvent(Event.Type.MSG_PROCESSING_END, null);
-      } else {
-         throw new IllegalStateException();
-      }
-   }
-
    public Span getSuppressed() {
       return suppressed;
    }
 
-   @Override
-   public synchronized Span getCurrent() {
-      Span current = this.currentSpan.get(Thread.currentThread());
-      if (current == null) {
-         return this;
-      } else {
-         return current;
-      }
-   }
-
-   @Override
-   public void addOutcoming(MessageId identifier) {
-      Span current = this.currentSpan.get(Thread.currentThread());
-      if (current == null) {
-         super.addOutcoming(identifier);
-      } else {
-         current.addOutcoming(identifier);;
-      }
-   }
-
-   @Override
-   public void addEvent(Event.Type type, Object payload) {
-      Span current = this.currentSpan.get(Thread.currentThread());
-      if (current == null) {
-         super.addEvent(type, payload);;
-      } else {
-         current.addEvent(type, payload);;
-      }
-   }
-
-   @Override
-   public void setNonCausal() {
-      Span current = this.currentSpan.get(Thread.currentThread());
-      if (current == null) {
-         super.setNonCausal();
-      } else {
-         current.setNonCausal();
-      }
-   }
-
-   private synchronized Span getChild(MessageId msg) {
+   /**
+    * @return Child span of the message, created if the message was not part of the batch.
+    */
+   public Span getChild(MessageId msg) {
       Span child = childrenMap.get(msg);
       if (child == null) {
-         child = new Span(this);
-         childrenMap.put(msg, child);
-         child.setIncoming(msg);
+         child = childrenMap.computeIfAbsent(msg, m -> {
+            Span span = new Span(this);
+            span.setIncoming(m);
+            return span;
+         });
       }
       return child;
    }
@@ -0,0 +1,87 @@
+package org.mft.objects;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Checkpoint message rendered in the SpanWriter rather than on the application thread. Each {} in the template
+ * is replaced by the next argument, remaining arguments are appended. Only immutable arguments of JDK types are
+ * kept as they are (strings, boxed primitives, big numbers, enums); classes are rendered by their simple name
+ * and other objects, including mutable numbers such as {@code AtomicLong}, by the class name and identity hash
+ * code captured when the message is created.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+public final class DeferredMessage implements Serializable {
+   private static final String PLACEHOLDER = "{}";
+
+   private final String template;
+   private final Object[] args;
+   // identity hash codes of arguments replaced by their class, null if there are none
+   private int[] identityHashes;
+
+   /**
+    * The arguments are captured in place, the array must not be shared.
+    */
+   public DeferredMessage(String template, Object... args) {
+      this.template = template;
+      this.args = args;
+      for (int i = 0; i < args.length; ++i) {
+         Object arg = args[i];
+         if (isImmutable(arg)) {
+            continue;
+         }
+         if (identityHashes == null) {
+            identityHashes = new int[args.length];
+         }
+         identityHashes[i] = System.identityHashCode(arg);
+         args[i] = arg.getClass();
+      }
+   }
+
+   private static boolean isImmutable(Object arg) {
+      if (arg == null) {
+         return true;
+      }
+      // exact classes, subclasses of BigInteger and BigDecimal may be mutable
+      Class<?> clazz = arg.getClass();
+      return clazz == String.class || clazz == Integer.class || clazz == Long.class || clazz == Short.class
+            || clazz == Byte.class || clazz == Double.class || clazz == Float.class || clazz == BigInteger.class
+            || clazz == BigDecimal.class || clazz == Boolean.class || clazz == Character.class
+            || arg instanceof Enum || arg instanceof Class;
+   }
+
+   public String render() {
+      StringBuilder sb = new StringBuilder(template.length() + 16 * args.length);
+      int start = 0;
+      int arg = 0;
+      for (int index; arg < args.length && (index = template.indexOf(PLACEHOLDER, start)) >= 0; ++arg) {
+         sb.append(template, start, index);
+         appendArg(sb, arg);
+         start = index + PLACEHOLDER.length();
+      }
+      sb.append(template, start, template.length());
+      for (; arg < args.length; ++arg) {
+         appendArg(sb, arg);
+      }
+      return sb.toString();
+   }
+
+   private void appendArg(StringBuilder sb, int index) {
+      Object arg = args[index];
+      if (arg instanceof Class) {
+         sb.append(((Class<?>) arg).getSimpleName());
+         if (identityHashes != null && identityHashes[index] != 0) {
+            sb.append('@').append(Integer.toHexString(identityHashes[index]));
+         }
+      } else {
+         sb.append(arg);
+      }
+   }
+
+   @Override
+   public String toString() {
+      return render();
+   }
+}
@@ -63,6 +63,7 @@ public class Event {
       MONITOR_WAIT_END("Monitor wait end"),
       GC_START("GC start"),
       GC_END("GC end"),
+      TRACER_LEVEL("TracerLevel"),
       ;
 
       private String name;
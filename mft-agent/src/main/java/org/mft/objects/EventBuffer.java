@@ -0,0 +1,121 @@
+package org.mft.objects;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Per-thread log of recorded events. The owning thread is the only writer, SpanWriter is the only reader:
+ * it drains all buffers and stitches the events into their spans before these are persisted.
+ *
+ * Recording an event does not allocate (until the chunk is full) nor acquire any monitor.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+public final class EventBuffer {
+   private static final int CHUNK_SIZE = 1024;
+   private static final ConcurrentLinkedQueue<EventBuffer> buffers = new ConcurrentLinkedQueue<>();
+   private static final ThreadLocal<EventBuffer> current = new ThreadLocal<EventBuffer>() {
+      @Override
+      protected EventBuffer initialValue() {
+         EventBuffer buffer = new EventBuffer(Thread.currentThread());
+         buffers.add(buffer);
+         return buffer;
+      }
+   };
+
+   private final Thread thread;
+   private final long threadId;
+   // owned by the writing thread
+   private Chunk tail;
+   // owned by the draining thread
+   private Chunk head;
+
+   private EventBuffer(Thread thread) {
+      this.thread = thread;
+      this.threadId = thread.getId();
+      this.head = this.tail = new Chunk();
+   }
+
+   /**
+    * @param value Primitive part of the payload, used with {@link Label}
+    */
+   static void record(Span span, Event.Type type, Object payload, long value) {
+      current.get().append(span, System.nanoTime(), type, payload, value);
+   }
+
+   /**
+    * Moves all events published so far into their spans. Must be called only from the SpanWriter thread.
+    *
+    * @param countsByType Counters of drained events indexed by {@link Event.Type#ordinal()}
+    * @return Number of drained events.
+    */
+   public static int drainAll(long[] countsByType) {
+      int drained = 0;
+      for (Iterator<EventBuffer> iterator = buffers.iterator(); iterator.hasNext(); ) {
+         EventBuffer buffer = iterator.next();
+         // check liveness before draining, so that we don't miss events written just before the thread died
+         boolean alive = buffer.thread.isAlive();
+         drained += buffer.drain(countsByType);
+         if (!alive) {
+            iterator.remove();
+         }
+      }
+      return drained;
+   }
+
+   private void append(Span span, long timestamp, Event.Type type, Object payload, long value) {
+      Chunk chunk = tail;
+      int index = chunk.written;
+      if (index == CHUNK_SIZE) {
+         Chunk next = new Chunk();
+         chunk.next = next;
+         tail = chunk = next;
+         index = 0;
+      }
+      chunk.spans[index] = span;
+      chunk.timestamps[index] = timestamp;
+      chunk.types[index] = type;
+      chunk.payloads[index] = payload;
+      chunk.values[index] = value;
+      chunk.written = index + 1;
+      // ordered store is sufficient, the span is handed over to SpanWriter through a synchronized queue
+      Chunk.PUBLISHED.lazySet(chunk, index + 1);
+   }
+
+   private int drain(long[] countsByType) {
+      Chunk chunk = head;
+      int drained = 0;
+      for (;;) {
+         int published = chunk.published;
+         for (int i = chunk.consumed; i < published; ++i) {
+            chunk.spans[i].addEvent(chunk.timestamps[i], threadId, chunk.types[i], chunk.payloads[i], chunk.values[i]);
+            countsByType[chunk.types[i].ordinal()]++;
+            chunk.spans[i] = null;
+            chunk.payloads[i] = null;
+         }
+         drained += published - chunk.consumed;
+         chunk.consumed = published;
+         Chunk next;
+         if (published == CHUNK_SIZE && (next = chunk.next) != null) {
+            head = chunk = next;
+         } else {
+            return drained;
+         }
+      }
+   }
+
+   private static final class Chunk {
+      static final AtomicIntegerFieldUpdater<Chunk> PUBLISHED = AtomicIntegerFieldUpdater.newUpdater(Chunk.class, "published");
+
+      final Span[] spans = new Span[CHUNK_SIZE];
+      final long[] timestamps = new long[CHUNK_SIZE];
+      final Event.Type[] types = new Event.Type[CHUNK_SIZE];
+      final Object[] payloads = new Object[CHUNK_SIZE];
+      final long[] values = new long[CHUNK_SIZE];
+      int written;
+      volatile int published;
+      volatile Chunk next;
+      int consumed;
+   }
+}
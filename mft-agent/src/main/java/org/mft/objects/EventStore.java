@@ -0,0 +1,173 @@
+package org.mft.objects;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact storage of span's events: primitive columns indexed by event position, payloads
+ * are kept in a side table as most events have none. Payload {@link Label} is accompanied by a primitive value.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+public final class EventStore implements Serializable {
+   private static final Event.Type[] TYPES = Event.Type.values();
+   private static final int INITIAL_CAPACITY = 8;
+   private static final int NO_PAYLOAD = -1;
+
+   private int size;
+   private long[] timestamps = new long[INITIAL_CAPACITY];
+   private byte[] types = new byte[INITIAL_CAPACITY];
+   // index into threadIds
+   private int[] threads = new int[INITIAL_CAPACITY];
+   // index into payloads or NO_PAYLOAD
+   private int[] payloadRefs = new int[INITIAL_CAPACITY];
+
+   // there are just few threads participating on one span
+   private long[] threadIds = new long[2];
+   private int threadCount;
+   private Object[] payloads = new Object[4];
+   private long[] values = new long[4];
+   private int payloadCount;
+
+   public int size() {
+      return size;
+   }
+
+   public long timestamp(int index) {
+      return timestamps[index];
+   }
+
+   public long threadId(int index) {
+      return threadIds[threads[index]];
+   }
+
+   public Event.Type type(int index) {
+      return TYPES[types[index]];
+   }
+
+   public Object payload(int index) {
+      int ref = payloadRefs[index];
+      return ref == NO_PAYLOAD ? null : payloads[ref];
+   }
+
+   /**
+    * @return Value accompanying {@link Label} payload.
+    */
+   public long value(int index) {
+      int ref = payloadRefs[index];
+      return ref == NO_PAYLOAD ? 0 : values[ref];
+   }
+
+   /**
+    * @return Payload with {@link Label} or {@link DeferredMessage} formatted as it will be read from the log.
+    */
+   public Object formattedPayload(int index) {
+      Object payload = payload(index);
+      if (payload instanceof Label) {
+         return ((Label) payload).format(value(index));
+      } else if (payload instanceof DeferredMessage) {
+         return ((DeferredMessage) payload).render();
+      }
+      return payload;
+   }
+
+   public void add(long timestamp, long threadId, Event.Type type, Object payload) {
+      add(timestamp, threadId, type, payload, 0);
+   }
+
+   public void add(long timestamp, long threadId, Event.Type type, Object payload, long value) {
+      if (size == timestamps.length) {
+         int capacity = size * 2;
+         timestamps = Arrays.copyOf(timestamps, capacity);
+         types = Arrays.copyOf(types, capacity);
+         threads = Arrays.copyOf(threads, capacity);
+         payloadRefs = Arrays.copyOf(payloadRefs, capacity);
+      }
+      timestamps[size] = timestamp;
+      types[size] = (byte) type.ordinal();
+      threads[size] = threadIndex(threadId);
+      if (payload == null) {
+         payloadRefs[size] = NO_PAYLOAD;
+      } else {
+         if (payloadCount == payloads.length) {
+            payloads = Arrays.copyOf(payloads, payloadCount * 2);
+            values = Arrays.copyOf(values, payloadCount * 2);
+         }
+         payloads[payloadCount] = payload;
+         values[payloadCount] = value;
+         payloadRefs[size] = payloadCount++;
+      }
+      ++size;
+   }
+
+   public void addAll(EventStore other) {
+      for (int i = 0; i < other.size; ++i) {
+         add(other.timestamps[i], other.threadId(i), other.type(i), other.payload(i), other.value(i));
+      }
+   }
+
+   private int threadIndex(long threadId) {
+      for (int i = threadCount - 1; i >= 0; --i) {
+         if (threadIds[i] == threadId) {
+            return i;
+         }
+      }
+      if (threadCount == threadIds.length) {
+         threadIds = Arrays.copyOf(threadIds, threadCount * 2);
+      }
+      threadIds[threadCount] = threadId;
+      return threadCount++;
+   }
+
+   /**
+    * @return Positions of events ordered by timestamp; events with equal timestamps keep their order.
+    */
+   public int[] sortedOrder() {
+      int[] order = new int[size];
+      boolean sorted = true;
+      for (int i = 0; i < size; ++i) {
+         order[i] = i;
+         if (i > 0 && timestamps[i - 1] > timestamps[i]) {
+            sorted = false;
+         }
+      }
+      if (!sorted) {
+         mergeSort(order, new int[size], 0, size);
+      }
+      return order;
+   }
+
+   private void mergeSort(int[] order, int[] tmp, int from, int to) {
+      if (to - from < 2) return;
+      int middle = (from + to) >>> 1;
+      mergeSort(order, tmp, from, middle);
+      mergeSort(order, tmp, middle, to);
+      int left = from, right = middle, out = from;
+      while (left < middle && right < to) {
+         tmp[out++] = timestamps[order[right]] < timestamps[order[left]] ? order[right++] : order[left++];
+      }
+      while (left < middle) tmp[out++] = order[left++];
+      while (right < to) tmp[out++] = order[right++];
+      System.arraycopy(tmp, from, order, from, to - from);
+   }
+
+   /**
+    * @return View of the events; each access creates new {@link Span.LocalEvent}.
+    */
+   public List<Span.LocalEvent> asList(int[] order) {
+      return new AbstractList<Span.LocalEvent>() {
+         @Override
+         public Span.LocalEvent get(int index) {
+            int i = order == null ? index : order[index];
+            return new Span.LocalEvent(timestamp(i), threadId(i), type(i), formattedPayload(i));
+         }
+
+         @Override
+         public int size() {
+            return size;
+         }
+      };
+   }
+}
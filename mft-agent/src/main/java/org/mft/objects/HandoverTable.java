@@ -0,0 +1,160 @@
+package org.mft.objects;
+
+/**
+ * Identity map from objects handed over between threads to the span and the number of pending handovers.
+ * Both are kept in one slot of an open-addressing table so that each operation is a single probe and
+ * does not allocate. The table is split into independently locked stripes.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+public final class HandoverTable {
+   private static final int STRIPE_BITS = 6;
+   private static final int INITIAL_STRIPE_CAPACITY = 16;
+
+   private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+   public interface Visitor {
+      /**
+       * @return False if the iteration should stop.
+       */
+      boolean visit(Object key, Span span, int refCount);
+   }
+
+   public HandoverTable() {
+      for (int i = 0; i < stripes.length; ++i) {
+         stripes[i] = new Stripe();
+      }
+   }
+
+   private static int spread(Object key) {
+      // identity hash codes are not well distributed in lower bits
+      return System.identityHashCode(key) * 0x9E3779B9;
+   }
+
+   private Stripe stripe(int hash) {
+      return stripes[hash >>> (32 - STRIPE_BITS)];
+   }
+
+   /**
+    * Increments reference counter for the key, associating it with the span if this is the first reference.
+    *
+    * @return Span previously associated with this key or null.
+    */
+   public Span increment(Object key, Span span) {
+      int hash = spread(key);
+      return stripe(hash).increment(key, hash, span);
+   }
+
+   /**
+    * Decrements reference counter for the key, removing the key when it drops to zero.
+    *
+    * @return Span associated with this key or null if there is none.
+    */
+   public Span decrement(Object key) {
+      int hash = spread(key);
+      return stripe(hash).decrement(key, hash);
+   }
+
+   public int size() {
+      int size = 0;
+      for (Stripe stripe : stripes) {
+         synchronized (stripe) {
+            size += stripe.size;
+         }
+      }
+      return size;
+   }
+
+   public void forEach(Visitor visitor) {
+      for (Stripe stripe : stripes) {
+         synchronized (stripe) {
+            for (int i = 0; i < stripe.keys.length; ++i) {
+               if (stripe.keys[i] != null && !visitor.visit(stripe.keys[i], stripe.spans[i], stripe.refCounts[i])) {
+                  return;
+               }
+            }
+         }
+      }
+   }
+
+   private static final class Stripe {
+      Object[] keys = new Object[INITIAL_STRIPE_CAPACITY];
+      Span[] spans = new Span[INITIAL_STRIPE_CAPACITY];
+      int[] refCounts = new int[INITIAL_STRIPE_CAPACITY];
+      int size;
+
+      synchronized Span increment(Object key, int hash, Span span) {
+         int mask = keys.length - 1;
+         int index = hash & mask;
+         for (Object k; (k = keys[index]) != null; index = (index + 1) & mask) {
+            if (k == key) {
+               refCounts[index]++;
+               return spans[index];
+            }
+         }
+         keys[index] = key;
+         spans[index] = span;
+         refCounts[index] = 1;
+         if (++size > keys.length >> 1) {
+            resize();
+         }
+         return null;
+      }
+
+      synchronized Span decrement(Object key, int hash) {
+         int mask = keys.length - 1;
+         int index = hash & mask;
+         for (Object k; (k = keys[index]) != null; index = (index + 1) & mask) {
+            if (k == key) {
+               Span span = spans[index];
+               if (--refCounts[index] == 0) {
+                  remove(index);
+               }
+               return span;
+            }
+         }
+         return null;
+      }
+
+      // backward shift deletion, we don't need tombstones with linear probing
+      private void remove(int index) {
+         int mask = keys.length - 1;
+         int hole = index;
+         for (int i = (index + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+            int home = spread(keys[i]) & mask;
+            // move the entry to the hole unless its home slot lies cyclically in (hole, i]
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+               keys[hole] = keys[i];
+               spans[hole] = spans[i];
+               refCounts[hole] = refCounts[i];
+               hole = i;
+            }
+         }
+         keys[hole] = null;
+         spans[hole] = null;
+         refCounts[hole] = 0;
+         --size;
+      }
+
+      private void resize() {
+         Object[] oldKeys = keys;
+         Span[] oldSpans = spans;
+         int[] oldRefCounts = refCounts;
+         int capacity = oldKeys.length << 1;
+         int mask = capacity - 1;
+         keys = new Object[capacity];
+         spans = new Span[capacity];
+         refCounts = new int[capacity];
+         for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] == null) continue;
+            int index = spread(oldKeys[i]) & mask;
+            while (keys[index] != null) {
+               index = (index + 1) & mask;
+            }
+            keys[index] = oldKeys[i];
+            spans[index] = oldSpans[i];
+            refCounts[index] = oldRefCounts[i];
+         }
+      }
+   }
+}
@@ -0,0 +1,90 @@
+package org.mft.objects;
+
+import java.io.Serializable;
+import java.util.EnumMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Payload of events recorded without allocation: the event stores this constant together with
+ * a primitive value and the text is formatted only when the log is read.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+public final class Label implements Serializable {
+   public enum Kind {
+      /* value followed by unit, e.g. 100 b */
+      QUANTITY,
+      /* label followed by value, or value in place of {} in the label */
+      NUMBER,
+      /* label followed by hash code of the key */
+      KEY_HASH,
+      /* identity hash code of the annotation, formatted as Integer */
+      IDENTITY_HASH
+   }
+
+   public static final Label IDENTITY_HASH = new Label(Kind.IDENTITY_HASH, "");
+   private static final EnumMap<Kind, ConcurrentHashMap<String, Label>> LABELS = new EnumMap<>(Kind.class);
+
+   static {
+      for (Kind kind : Kind.values()) {
+         LABELS.put(kind, new ConcurrentHashMap<>());
+      }
+   }
+
+   private final Kind kind;
+   private final String text;
+
+   private Label(Kind kind, String text) {
+      this.kind = kind;
+      this.text = text;
+   }
+
+   /**
+    * @return Shared instance; lookup does not allocate after the first call.
+    */
+   public static Label of(Kind kind, String text) {
+      if (kind == Kind.IDENTITY_HASH) {
+         return IDENTITY_HASH;
+      }
+      ConcurrentHashMap<String, Label> labels = LABELS.get(kind);
+      Label label = labels.get(text);
+      if (label == null) {
+         Label prev = labels.putIfAbsent(text, label = new Label(kind, text));
+         if (prev != null) {
+            label = prev;
+         }
+      }
+      return label;
+   }
+
+   public Kind getKind() {
+      return kind;
+   }
+
+   public String getText() {
+      return text;
+   }
+
+   /**
+    * @return The payload as it would be recorded with String (or Integer for identity hash).
+    */
+   public Object format(long value) {
+      switch (kind) {
+         case QUANTITY: return value + " " + text;
+         case NUMBER: {
+            // checkpoint(template, int) binds to checkpoint(String, long) rather than to the boxing overload
+            int placeholder = text.indexOf("{}");
+            return placeholder < 0 ? text + " " + value
+                  : text.substring(0, placeholder) + value + text.substring(placeholder + 2);
+         }
+         case KEY_HASH: return text + " #" + Integer.toHexString((int) value);
+         case IDENTITY_HASH: return (int) value;
+         default: throw new IllegalStateException(kind.toString());
+      }
+   }
+
+   @Override
+   public String toString() {
+      return kind + ":" + text;
+   }
+}
@@ -16,6 +16,13 @@ public interface MessageId {
     */
    int id();
 
+   /**
+    * @return False if the sender has decided not to trace the flow this message belongs to.
+    */
+   default boolean isSampled() {
+      return true;
+   }
+
    class Impl implements MessageId{
       private final short from;
       private final int id;
@@ -23,16 +23,17 @@
 package org.mft.objects;
 
 import org.mft.persistence.Persistable;
+import org.mft.persistence.PersistenceQueue;
 import org.mft.persistence.Persister;
 import org.mft.persistence.TextPersister;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
 * Sequence of operations on one node. The control flow may span multiple threads,
@@ -41,14 +42,22 @@ import java.util.Set;
 * @author Radim Vansa &lt;rvansa@redhat.com&gt;
 */
 public class Span implements Serializable, Persistable {
+   private static final LongAdder created = new LongAdder();
+   private static final AtomicIntegerFieldUpdater<Span> COUNTER = AtomicIntegerFieldUpdater.newUpdater(Span.class, "counter");
    private final transient Span parent;
+   // the whole tree is persisted at once, only root's counter is used
+   private final transient Span root;
    private MessageId incoming;
    private List<MessageId> outcoming;
-   private List<LocalEvent> events = new ArrayList<>();
+   // on the agent side these are stitched together from EventBuffers by SpanWriter
+   private EventStore events = new EventStore();
    protected transient List<Span> children = new ArrayList<Span>();
+   private transient volatile String lastMsgTag;
 
-   private int counter = 1;
+   private volatile int counter = 1;
    private boolean nonCausal;
+   // set before the last decrement of the counter, therefore visible to SpanWriter
+   private transient boolean unsampled;
 
 //   private static HashSet<Span> debugSpans = new HashSet<Span>();
 
@@ -69,6 +78,8 @@ public class Span implements Serializable, Persistable {
 //         debugSpans.add(this);
 //      }
       this.parent = null;
+      this.root = this;
+      created.increment();
    }
 
    public Span(Span parent) {
@@ -76,6 +87,8 @@ public class Span implements Serializable, Persistable {
 //         debugSpans.add(this);
 //      }
       this.parent = parent;
+      this.root = parent.root;
+      created.increment();
       synchronized (parent) {
          parent.children.add(this);
       }
@@ -93,38 +106,33 @@ public class Span implements Serializable, Persistable {
    }
 
     /**
-     * Increase counter in parent span, if it doesn't have a parent increase counter it this span.
+     * Increase counter in the root span.
      */
    public void incrementRefCount() {
-      if (parent != null) {
-         parent.incrementRefCount();
-         return;
-      }
-      synchronized (this) {
-         counter++;
-      }
+      COUNTER.incrementAndGet(root);
    }
     /**
-     * Decrement counter in parent span, if it doesn't have a parent decrement counter it this span.
-     * If counter is zero pass to finished
+     * Decrement counter in the root span. If counter is zero pass the root to finished.
      */
-   public void decrementRefCount(Queue<Persistable> persistenceQueue) {
-      if (parent != null) {
-         parent.decrementRefCount(persistenceQueue);
-         return;
-      }
-      synchronized (this) {
-         counter--;
-         if (counter == 0) {
-            persist(persistenceQueue);
-         } else if (counter < 0) {
-            ByteArrayOutputStream stream = new ByteArrayOutputStream();
-            print(new PrintStream(stream), "");
-            throw new IllegalStateException(new String(stream.toByteArray()));
-         }
+   public void decrementRefCount(PersistenceQueue persistenceQueue) {
+      int counter = COUNTER.decrementAndGet(root);
+      if (counter == 0) {
+         // the events are still in EventBuffers, SpanWriter will persist the whole tree
+         persistenceQueue.offer(root);
+      } else if (counter < 0) {
+         ByteArrayOutputStream stream = new ByteArrayOutputStream();
+         root.print(new PrintStream(stream), "");
+         throw new IllegalStateException(new String(stream.toByteArray()));
       }
    }
 
+   /**
+    * @return Number of spans created in this JVM, including children.
+    */
+   public static long getCreatedCount() {
+      return created.sum();
+   }
+
    public void print(PrintStream out, String prefix) {
       out.printf("%08x (parent %08x)", this.hashCode(), this.parent == null ? 0 : this.parent.hashCode());
       new TextPersister(out, prefix).write(this, true);
@@ -138,20 +146,21 @@ public class Span implements Serializable, Persistable {
    }
 
     /**
-     * add events, incoming and outcomming messages from parent, pass children to finished spans
-     * @param persistenceQueue
+     * add events, incoming and outcomming messages from parent, write children to the persister
+     * @param persister
      */
-   private void persist(Queue<Persistable> persistenceQueue) {
+   private void persist(Persister persister) throws IOException {
 //      synchronized (debugSpans) {
 //         debugSpans.remove(this);
 //      }
+      if (unsampled) {
+         return;
+      }
       if (parent != null) {
          if (parent == this) {
             throw new IllegalStateException();
          }
-         for (LocalEvent e : parent.events) {
-            events.add(e);
-         }
+         events.addAll(parent.events);
          if (parent.incoming != null) {
             setIncoming(parent.incoming);
          }
@@ -163,27 +172,55 @@ public class Span implements Serializable, Persistable {
       }
       if (children.isEmpty()) {
 //         System.err.printf("%08x finished\n", this.hashCode());
-         persistenceQueue.add(this);
+         persister.write(this, false);
       } else {
          boolean causalChildren = false;
+         boolean sampledChildren = false;
          for (Span child : children) {
-            if (!child.isNonCausal()) {
-               causalChildren = true;
+            if (!child.unsampled) {
+               sampledChildren = true;
+               if (!child.isNonCausal()) {
+                  causalChildren = true;
+               }
             }
-            child.persist(persistenceQueue);
+            child.persist(persister);
          }
-         if (!causalChildren) {
-            persistenceQueue.add(this);
+         // span that only dispatched messages from not sampled traces is not interesting
+         if (!causalChildren && sampledChildren) {
+            persister.write(this, false);
 //            System.err.printf("%08x finished\n", this.hashCode());
          }
       }
    }
 
-   public synchronized void addEvent(Event.Type type, Object payload) {
-      events.add(new LocalEvent(type, payload));
+   /**
+    * Records the event in current thread's {@link EventBuffer}; the span does not see it until SpanWriter
+    * drains the buffers.
+    */
+   public void addEvent(Event.Type type, Object payload) {
+      if (type == Event.Type.MESSAGE_TAG) {
+         lastMsgTag = String.valueOf(payload);
+      }
+      EventBuffer.record(this, type, payload, 0);
+   }
+
+   /**
+    * Records event without allocating the payload; it's formatted by {@link Label#format(long)} when read.
+    */
+   public void addEvent(Event.Type type, Label label, long value) {
+      EventBuffer.record(this, type, label, value);
+   }
+
+   public void addEvent(long timestamp, long threadId, Event.Type type, Object payload) {
+      events.add(timestamp, threadId, type, payload);
    }
+
+   public void addEvent(long timestamp, long threadId, Event.Type type, Object payload, long value) {
+      events.add(timestamp, threadId, type, payload, value);
+   }
+
    public void addEvent(LocalEvent event){
-      events.add(event);
+      events.add(event.timestamp, event.threadId, event.type, event.payload);
    }
 
    public void setNonCausal() {
@@ -194,6 +231,17 @@ public class Span implements Serializable, Persistable {
       return nonCausal;
    }
 
+   /**
+    * The span belongs to a trace that was not sampled and it won't be persisted.
+    */
+   public void setUnsampled() {
+      this.unsampled = true;
+   }
+
+   public boolean isUnsampled() {
+      return unsampled;
+   }
+
    public void setIncoming(MessageId incoming) {
       if (this.incoming != null) {
          //throw new IllegalArgumentException("Cannot have two incoming messages!");
@@ -209,15 +257,13 @@ public class Span implements Serializable, Persistable {
       return parent;
    }
 
+   public List<Span> getChildren() {
+      return children;
+   }
+
    /* Debugging only */
    public String getLastMsgTag() {
-      LocalEvent lastTag = null;
-      for (LocalEvent event : events) {
-         if (event.type == Event.Type.MESSAGE_TAG && (lastTag == null || event.timestamp > lastTag.timestamp)) {
-            lastTag = event;
-         }
-      }
-      return lastTag == null ? null : String.valueOf(lastTag.payload);
+      return lastMsgTag;
    }
 
    public Set<MessageId> getMessages() {
@@ -239,9 +285,9 @@ public class Span implements Serializable, Persistable {
 
    /* Debugging only */
    public String getTraceTag() {
-      for (LocalEvent event : events) {
-         if (event.type == Event.Type.TRACE_TAG) {
-            return String.valueOf(event.payload);
+      for (int i = 0; i < events.size(); ++i) {
+         if (events.type(i) == Event.Type.TRACE_TAG) {
+            return String.valueOf(events.formattedPayload(i));
          }
       }
       return "-no-trace-tag-";
@@ -265,11 +311,11 @@ public class Span implements Serializable, Persistable {
          sb.append(System.lineSeparator());
          sb.append("Events:");
          sb.append(System.lineSeparator());
-         for (LocalEvent event : events){
-            sb.append(" timestamp: " + event.timestamp);
-            sb.append(" threadId: " + event.threadId);
-            sb.append(" type: " + event.type);
-            sb.append(" payload: " + event.payload);
+         for (int i = 0; i < events.size(); ++i){
+            sb.append(" timestamp: " + events.timestamp(i));
+            sb.append(" threadId: " + events.threadId(i));
+            sb.append(" type: " + events.type(i));
+            sb.append(" payload: " + events.formattedPayload(i));
             sb.append(System.lineSeparator());
          }
       }
@@ -278,6 +324,10 @@ public class Span implements Serializable, Persistable {
    }
 
    public List<LocalEvent> getEvents() {
+      return events.asList(null);
+   }
+
+   public EventStore getEventStore() {
       return events;
    }
 
@@ -286,14 +336,12 @@ public class Span implements Serializable, Persistable {
    }
 
    public List<LocalEvent> getSortedEvents() {
-      Span.LocalEvent[] array = events.toArray(new Span.LocalEvent[events.size()]);
-      Arrays.sort(array);
-      return Arrays.asList(array);
+      return events.asList(events.sortedOrder());
    }
 
    @Override
    public void accept(Persister persister) throws IOException {
-      persister.write(this, false);
+      persist(persister);
    }
 
    public static class LocalEvent implements Comparable<LocalEvent>, Serializable {
@@ -311,13 +359,6 @@ public class Span implements Serializable, Persistable {
          this.payload = payload;
       }
 
-      private LocalEvent(Event.Type type, Object payload) {
-         this.timestamp = System.nanoTime();
-         this.threadId = Thread.currentThread().getId();
-         this.type = type;
-         this.payload = payload;
-      }
-
       //@Override
       public int compareTo(LocalEvent o) {
          return Long.compare(timestamp, o.timestamp);
@@ -0,0 +1,39 @@
+package org.mft.objects;
+
+import org.mft.persistence.Persistable;
+import org.mft.persistence.Persister;
+
+import java.io.IOException;
+
+/**
+ * Stack trace captured by stackpoint, written to the span log once; the events refer to it by id.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+public class StackDefinition implements Persistable {
+   private final int id;
+   private final String stack;
+
+   public StackDefinition(int id, String stack) {
+      this.id = id;
+      this.stack = stack;
+   }
+
+   public int getId() {
+      return id;
+   }
+
+   public String getStack() {
+      return stack;
+   }
+
+   @Override
+   public void accept(Persister persister) throws IOException {
+      persister.write(this);
+   }
+
+   @Override
+   public String toString() {
+      return stack;
+   }
+}
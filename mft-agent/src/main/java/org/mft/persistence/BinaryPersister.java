@@ -1,40 +1,121 @@
 package org.mft.persistence;
 
+import org.mft.objects.DeferredMessage;
 import org.mft.objects.Event;
+import org.mft.objects.EventStore;
 import org.mft.objects.Header;
+import org.mft.objects.Label;
 import org.mft.objects.Message;
 import org.mft.objects.MessageId;
 import org.mft.objects.Span;
+import org.mft.objects.StackDefinition;
 import org.mft.objects.ThreadChange;
 
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
+ * Spans are written into memory-mapped segments span.(suffix).(n).bin; each segment starts with its own header
+ * and holds length-prefixed records, zero length marks the end of written data. Single-file logs
+ * with the old {@link #TAG} can still be read.
+ *
+ * With org.mft.compressSpans the records are collected into blocks that are deflated when full;
+ * segments tagged by {@link #COMPRESSED_TAG} hold the compressed blocks prefixed with compressed
+ * and uncompressed length. Reader inflates several blocks ahead in the common pool.
+ *
+ * Strings in segmented logs are dictionary-encoded: varint 0 is followed by a literal,
+ * id + 1 refers to a string defined earlier and the next unused id + 1 defines it, followed by the literal.
+ * Literals are varint length and UTF-8 bytes.
+ *
+ * Stackpoint events carry only id of the stack; the stack itself is written once in a separate record.
+ * Payloads recorded as {@link Label} are written as the label and the primitive value and formatted by the reader.
+ *
+ * With org.mft.compactSpans the segments are tagged by {@link #COMPACT_TAG} (or {@link #COMPACT_COMPRESSED_TAG})
+ * and use variable-length encoding: event timestamps are zig-zag deltas from the previous event
+ * in the span (the first one from header's nano time), thread ids are dictionary-encoded as strings
+ * and message ids are zig-zag varints.
+ *
  * @author Radim Vansa &lt;rvansa@redhat.com&gt;
  */
 public class BinaryPersister extends Persister {
    public static final byte[] TAG = new byte[]{'M', 'F', 'T', 'B'};
+   public static final byte[] SEGMENT_TAG = new byte[]{'M', 'F', 'T', 'S'};
+   public static final byte[] COMPRESSED_TAG = new byte[]{'M', 'F', 'T', 'Z'};
+   public static final byte[] COMPACT_TAG = new byte[]{'M', 'F', 'T', 'C'};
+   public static final byte[] COMPACT_COMPRESSED_TAG = new byte[]{'M', 'F', 'T', 'X'};
+   private static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+   private static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+   private static final int SEGMENT_HEADER_SIZE = 24;
+   private static final int BLOCK_HEADER_SIZE = 8;
+   private static final int INFLATE_AHEAD = Math.max(2, Runtime.getRuntime().availableProcessors());
+   private static final int DEFAULT_MAX_STRINGS = 65536;
+   private static final int MAX_THREADS = 65536;
    private static final byte NULL = 0;
    private static final byte TEXT = 1;
    private static final byte MESSAGE_ID = 2;
    private static final byte BATCH = 3;
    private static final byte IDENTITY_HASH_CODE = 4;
    private static final byte MESSAGE = 5;
+   private static final byte STACK = 6;
+   private static final byte QUANTITY = 7;
+   private static final byte NUMBER = 8;
+   private static final byte KEY_HASH = 9;
+   private static final byte THREAD_CHANGE_RECORD = 64;
+   private static final byte STACK_RECORD = 32;
+   private static final Event.Type[] TYPES = Event.Type.values();
 
    private DataInputStream inputStream;
-   private DataOutputStream outputStream = null;
+   private boolean segmented;
+   private boolean compressed;
+   private boolean compact;
+   private Header header;
+   // timestamps in compact format are relative to this
+   private long baseTimestamp;
+   private final long segmentSize = Long.getLong("org.mft.segmentSize", DEFAULT_SEGMENT_SIZE);
+   private final boolean compressSpans = System.getProperty("org.mft.compressSpans") != null;
+   private final boolean compactSpans = System.getProperty("org.mft.compactSpans") != null;
+   private final int blockSize = Integer.getInteger("org.mft.blockSize", DEFAULT_BLOCK_SIZE);
+   private String pathPrefix;
+   private int segmentIndex;
+   private long finishedSegmentsBytes;
+   private FileChannel channel;
+   // we are not using MappedByteBuffer methods so the type is not important
+   private ByteBuffer segment;
+   // records are encoded here; either the segment or the block to be compressed
+   private ByteBuffer out;
+   private Deflater deflater;
+   private byte[] compressedBlock;
+   // strings with dynamic parts must not exhaust memory, after the limit these are written as literals
+   private final int maxStrings = Integer.getInteger("org.mft.maxStrings", DEFAULT_MAX_STRINGS);
+   private final Map<String, Integer> stringIds = new HashMap<>();
+   private final List<String> strings = new ArrayList<>();
+   private int recordStrings;
+   private final Map<Long, Integer> threadIds = new HashMap<>();
+   private final List<Long> threads = new ArrayList<>();
+   private int recordThreads;
 
    public BinaryPersister() {}
 
@@ -42,89 +123,381 @@ public class BinaryPersister extends Persister {
       super(input);
    }
 
+   public static String segmentPath(String pathPrefix, int index) {
+      return pathPrefix + "." + index + ".bin";
+   }
+
+   public static boolean isSegmentTag(byte[] tag) {
+      return Arrays.equals(tag, SEGMENT_TAG) || Arrays.equals(tag, COMPRESSED_TAG)
+            || Arrays.equals(tag, COMPACT_TAG) || Arrays.equals(tag, COMPACT_COMPRESSED_TAG);
+   }
+
    @Override
    public void openForWrite(String path, Header header) throws IOException {
       close();
-      outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+      this.header = header;
+      this.pathPrefix = path.endsWith(".bin") ? path.substring(0, path.length() - 4) : path;
+      this.segmentIndex = 0;
+      this.finishedSegmentsBytes = 0;
+      this.compact = compactSpans;
+      this.baseTimestamp = header.getNanoTime();
+      stringIds.clear();
+      strings.clear();
+      threadIds.clear();
+      threads.clear();
+      openSegment(segmentSize);
+      if (compressSpans) {
+         deflater = new Deflater(Deflater.BEST_SPEED);
+         out = ByteBuffer.allocate(blockSize);
+      }
+   }
+
+   private void openSegment(long size) throws IOException {
+      channel = FileChannel.open(Paths.get(segmentPath(pathPrefix, segmentIndex)), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      if (compactSpans) {
+         segment.put(compressSpans ? COMPACT_COMPRESSED_TAG : COMPACT_TAG);
+      } else {
+         segment.put(compressSpans ? COMPRESSED_TAG : SEGMENT_TAG);
+      }
+      segment.putLong(header.getNanoTime());
+      segment.putLong(header.getUnixTime());
+      segment.putInt(segmentIndex);
+      this.segment = segment;
+      if (!compressSpans) {
+         out = segment;
+      }
+   }
+
+   private void finishSegment() throws IOException {
+      try {
+         // the mapping stays valid until it's garbage collected
+         channel.truncate(segment.position());
+         finishedSegmentsBytes += segment.position();
+      } finally {
+         channel.close();
+         channel = null;
+         segment = null;
+         ++segmentIndex;
+      }
+   }
+
+   /**
+    * Reserves space for record length.
+    */
+   private void startRecord() {
+      recordStrings = strings.size();
+      recordThreads = threads.size();
+      out.putInt(0);
+   }
+
+   private void finishRecord(int start) {
+      // length is written last so that partially written record is never read
+      out.putInt(start, out.position() - start - 4);
+   }
 
-      outputStream.write(TAG);
-      outputStream.writeLong(header.getNanoTime());
-      outputStream.writeLong(header.getUnixTime());
+   /**
+    * Record did not fit into current segment or block. The data after start are ignored as the length is still zero.
+    */
+   private void rollOver(int start, boolean freshSegment) throws IOException {
+      ((Buffer) out).position(start);
+      // the definitions were lost with the record
+      while (strings.size() > recordStrings) {
+         stringIds.remove(strings.remove(strings.size() - 1));
+      }
+      while (threads.size() > recordThreads) {
+         threadIds.remove(threads.remove(threads.size() - 1));
+      }
+      if (compressSpans) {
+         if (freshSegment) {
+            // single record is bigger than the block
+            ByteBuffer bigger = ByteBuffer.allocate(2 * out.capacity());
+            ((Buffer) out).flip();
+            out = bigger.put(out);
+         } else {
+            flushBlock();
+         }
+      } else {
+         long size = freshSegment ? 2L * out.capacity() : segmentSize;
+         finishSegment();
+         openSegment(size);
+      }
+   }
+
+   private void flushBlock() throws IOException {
+      int length = out.position();
+      if (length == 0) {
+         return;
+      }
+      deflater.reset();
+      deflater.setInput(out.array(), out.arrayOffset(), length);
+      deflater.finish();
+      if (compressedBlock == null || compressedBlock.length < length + (length >> 3) + 64) {
+         compressedBlock = new byte[length + (length >> 3) + 64];
+      }
+      int compressedLength = 0;
+      while (!deflater.finished()) {
+         if (compressedLength == compressedBlock.length) {
+            compressedBlock = Arrays.copyOf(compressedBlock, 2 * compressedBlock.length);
+         }
+         compressedLength += deflater.deflate(compressedBlock, compressedLength, compressedBlock.length - compressedLength);
+      }
+      if (segment.remaining() < BLOCK_HEADER_SIZE + compressedLength) {
+         long size = Math.max(segmentSize, SEGMENT_HEADER_SIZE + BLOCK_HEADER_SIZE + compressedLength);
+         finishSegment();
+         openSegment(size);
+      }
+      int start = segment.position();
+      ((Buffer) segment).position(start + 4);
+      segment.putInt(length);
+      segment.put(compressedBlock, 0, compressedLength);
+      // as with records, the length is written last
+      segment.putInt(start, compressedLength);
+      ((Buffer) out).clear();
+      if (out.capacity() > blockSize) {
+         out = ByteBuffer.allocate(blockSize);
+      }
    }
 
    @Override
    public Header openForRead() throws IOException {
       close();
       this.inputStream = new DataInputStream(input.stream());
+      strings.clear();
+      threads.clear();
+      Header header = readHeader(inputStream, 0);
+      baseTimestamp = header.getNanoTime();
+      return header;
+   }
+
+   private Header readHeader(DataInputStream inputStream, int index) throws IOException {
       byte[] fileTag = new byte[4];
-      if (inputStream.read(fileTag) < 4 || !Arrays.equals(fileTag, TAG)) {
+      if (inputStream.read(fileTag) < 4) {
          throw new IllegalArgumentException("Not a binary span log");
       }
-      return new Header(inputStream.readLong(), inputStream.readLong());
+      if (Arrays.equals(fileTag, TAG)) {
+         segmented = false;
+      } else if (isSegmentTag(fileTag)) {
+         segmented = true;
+      } else {
+         throw new IllegalArgumentException("Not a binary span log");
+      }
+      compressed = Arrays.equals(fileTag, COMPRESSED_TAG) || Arrays.equals(fileTag, COMPACT_COMPRESSED_TAG);
+      compact = Arrays.equals(fileTag, COMPACT_TAG) || Arrays.equals(fileTag, COMPACT_COMPRESSED_TAG);
+      Header header = new Header(inputStream.readLong(), inputStream.readLong());
+      if (segmented && inputStream.readInt() != index) {
+         throw new IllegalArgumentException("Segment " + index + " of " + input + " is out of order");
+      }
+      return header;
    }
 
    @Override
    public void write(Span span, boolean sort) throws IOException {
+      for (boolean freshSegment = false; ; freshSegment = true) {
+         int start = out.position();
+         try {
+            startRecord();
+            writeSpan(span, sort);
+            finishRecord(start);
+            return;
+         } catch (BufferOverflowException e) {
+            rollOver(start, freshSegment);
+         }
+      }
+   }
+
+   private void writeSpan(Span span, boolean sort) {
       byte flags = (byte) (span.isNonCausal() ? 1 : 0);
       flags |= (byte) (span.getIncoming() == null ? 2 : 0);
-      outputStream.writeByte(flags);
+      out.put(flags);
       // TODO: we could instead just store forward references to the messages
       if (span.getIncoming() != null){
-         outputStream.writeShort(span.getIncoming().from());
-         outputStream.writeInt(span.getIncoming().id());
+         writeMessageId(span.getIncoming());
       }
       int outcomingCount = span.getOutcoming() != null ? span.getOutcoming().size() : 0;
-      outputStream.writeShort(outcomingCount);
+      writeCount(outcomingCount);
       if (span.getOutcoming() != null){
          for (MessageId message : span.getOutcoming()){
-            outputStream.writeShort(message.from());
-            outputStream.writeInt(message.id());
-         }
-      }
-      Collection<Span.LocalEvent> events = sort ? span.getSortedEvents() : span.getEvents();
-      int eventCount = span.getEvents() != null ? span.getEvents().size() : 0;
-      outputStream.writeShort(eventCount);
-      for (Span.LocalEvent event : events){
-         outputStream.writeLong(event.timestamp);
-         outputStream.writeLong(event.threadId);
-         outputStream.writeByte(event.type.ordinal());
-         if (event.payload == null) {
-            outputStream.writeByte(NULL);
-         } else if (event.payload instanceof String) {
-            outputStream.writeByte(TEXT);
-            writeString((String) event.payload);
-         } else if (event.payload instanceof MessageId) {
-            MessageId msg = (MessageId) event.payload;
-            outputStream.writeByte(MESSAGE_ID);
-            outputStream.writeShort(msg.from());
-            outputStream.writeInt(msg.id());
-         } else if (event.payload instanceof List) {
-            outputStream.writeByte(BATCH);
-            List<MessageId> batch = (List<MessageId>) event.payload;
-            outputStream.writeShort(batch.size());
+            writeMessageId(message);
+         }
+      }
+      EventStore events = span.getEventStore();
+      int[] order = sort ? events.sortedOrder() : null;
+      int eventCount = events.size();
+      writeCount(eventCount);
+      long previousTimestamp = baseTimestamp;
+      for (int j = 0; j < eventCount; ++j) {
+         int i = order == null ? j : order[j];
+         long timestamp = events.timestamp(i);
+         if (compact) {
+            writeVarLong(zigZag(timestamp - previousTimestamp));
+            previousTimestamp = timestamp;
+         } else {
+            out.putLong(timestamp);
+         }
+         writeThreadId(events.threadId(i));
+         out.put((byte) events.type(i).ordinal());
+         Object payload = events.payload(i);
+         if (payload == null) {
+            out.put(NULL);
+         } else if (payload instanceof String) {
+            out.put(TEXT);
+            writeString((String) payload);
+         } else if (payload instanceof MessageId) {
+            MessageId msg = (MessageId) payload;
+            out.put(MESSAGE_ID);
+            writeMessageId(msg);
+         } else if (payload instanceof List) {
+            out.put(BATCH);
+            List<MessageId> batch = (List<MessageId>) payload;
+            writeCount(batch.size());
             for (MessageId msg : batch) {
-               outputStream.writeShort(msg.from());
-               outputStream.writeInt(msg.id());
+               writeMessageId(msg);
             }
-         } else if (event.payload instanceof Message) {
-            Message msg = (Message) event.payload;
-            outputStream.writeByte(MESSAGE);
-            outputStream.writeShort(msg.id().from());
-            outputStream.writeInt(msg.id().id());
-            outputStream.writeInt(msg.identityHashCode());
-         } else if (event.payload instanceof Integer) {
-            outputStream.writeByte(IDENTITY_HASH_CODE);
-            outputStream.writeInt((Integer) event.payload);
+         } else if (payload instanceof Message) {
+            Message msg = (Message) payload;
+            out.put(MESSAGE);
+            writeMessageId(msg.id());
+            // hash codes are random, varint would not help
+            out.putInt(msg.identityHashCode());
+         } else if (payload instanceof Integer) {
+            out.put(IDENTITY_HASH_CODE);
+            out.putInt((Integer) payload);
+         } else if (payload instanceof StackDefinition) {
+            out.put(STACK);
+            writeStackId(((StackDefinition) payload).getId());
+         } else if (payload instanceof Label) {
+            writeLabeled((Label) payload, events.value(i));
+         } else if (payload instanceof DeferredMessage) {
+            out.put(TEXT);
+            // rendered messages rarely repeat, these would only waste dictionary slots
+            writeVarInt(0);
+            writeUtf8(((DeferredMessage) payload).render());
          }
       }
    }
 
-   public void writeString(String threadName) throws IOException {
-      outputStream.writeShort(threadName.length());
-      // ignore non-ascii part of chars
-      for (int i = 0; i < threadName.length(); ++i) {
-         outputStream.writeByte(threadName.charAt(i));
+   private void writeLabeled(Label label, long value) {
+      switch (label.getKind()) {
+         case IDENTITY_HASH:
+            out.put(IDENTITY_HASH_CODE);
+            out.putInt((int) value);
+            return;
+         case QUANTITY:
+            out.put(QUANTITY);
+            break;
+         case NUMBER:
+            out.put(NUMBER);
+            break;
+         case KEY_HASH:
+            out.put(KEY_HASH);
+            // hash codes are random, varint would not help
+            writeString(label.getText());
+            out.putInt((int) value);
+            return;
+      }
+      writeString(label.getText());
+      if (compact) {
+         writeVarLong(zigZag(value));
+      } else {
+         out.putLong(value);
+      }
+   }
+
+   private void writeMessageId(MessageId msg) {
+      if (compact) {
+         writeVarInt(zigZag(msg.from()));
+         writeVarInt(zigZag(msg.id()));
+      } else {
+         out.putShort(msg.from());
+         out.putInt(msg.id());
+      }
+   }
+
+   private void writeCount(int count) {
+      if (compact) {
+         writeVarInt(count);
+      } else {
+         out.putShort((short) count);
+      }
+   }
+
+   /**
+    * Thread ids are dictionary-encoded in the same way as strings.
+    */
+   private void writeThreadId(long threadId) {
+      if (!compact) {
+         out.putLong(threadId);
+         return;
+      }
+      Integer index = threadIds.get(threadId);
+      if (index != null) {
+         writeVarInt(index + 1);
+         return;
+      }
+      if (threads.size() < MAX_THREADS) {
+         writeVarInt(threads.size() + 1);
+         threadIds.put(threadId, threads.size());
+         threads.add(threadId);
+      } else {
+         writeVarInt(0);
+      }
+      writeVarLong(threadId);
+   }
+
+   public void writeString(String string) {
+      Integer id = stringIds.get(string);
+      if (id != null) {
+         writeVarInt(id + 1);
+         return;
+      }
+      if (strings.size() < maxStrings) {
+         writeVarInt(strings.size() + 1);
+         stringIds.put(string, strings.size());
+         strings.add(string);
+      } else {
+         writeVarInt(0);
+      }
+      writeUtf8(string);
+   }
+
+   private void writeUtf8(String string) {
+      byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+      writeVarInt(bytes.length);
+      out.put(bytes);
+   }
+
+   private void writeStackId(int id) {
+      if (compact) {
+         writeVarInt(id);
+      } else {
+         out.putInt(id);
+      }
+   }
+
+   private void writeVarInt(int value) {
+      while ((value & ~0x7F) != 0) {
+         out.put((byte) (value | 0x80));
+         value >>>= 7;
       }
+      out.put((byte) value);
+   }
+
+   private void writeVarLong(long value) {
+      while ((value & ~0x7FL) != 0) {
+         out.put((byte) (value | 0x80));
+         value >>>= 7;
+      }
+      out.put((byte) value);
+   }
+
+   private static int zigZag(int value) {
+      return (value << 1) ^ (value >> 31);
+   }
+
+   private static long zigZag(long value) {
+      return (value << 1) ^ (value >> 63);
    }
 
    @Override
@@ -133,28 +506,150 @@ public class BinaryPersister extends Persister {
          inputStream.close();
          inputStream = null;
       }
-      if (outputStream != null) {
-         outputStream.close();
-         outputStream = null;
+      if (segment != null) {
+         try {
+            if (compressSpans) {
+               flushBlock();
+            }
+         } finally {
+            out = null;
+            finishSegment();
+         }
+      }
+      if (deflater != null) {
+         deflater.end();
+         deflater = null;
       }
    }
 
    @Override
    public void read() throws IOException {
+      if (!segmented) {
+         try {
+            for (;;) {
+               readRecord();
+            }
+         } catch (EOFException e) {}
+         return;
+      }
+      if (compressed) {
+         readCompressed();
+         return;
+      }
+      List<Input> segments = input.segments();
+      for (int i = 0; i < segments.size(); ++i) {
+         if (i > 0) {
+            inputStream.close();
+            inputStream = new DataInputStream(segments.get(i).stream());
+            readHeader(inputStream, i);
+         }
+         try {
+            // zero length means that the rest of the segment was not written
+            while (inputStream.readInt() != 0) {
+               readRecord();
+            }
+         } catch (EOFException e) {}
+      }
+   }
+
+   /**
+    * Reads compressed blocks from the segments and lets the common pool inflate them ahead
+    * while the records from the first inflated block are parsed.
+    */
+   private void readCompressed() throws IOException {
+      List<Input> segments = input.segments();
+      DataInputStream blocks = inputStream;
+      int segmentIndex = 0;
+      ArrayDeque<CompletableFuture<byte[]>> inflated = new ArrayDeque<>();
       try {
          for (;;) {
-            byte flags = inputStream.readByte();
-            if ((flags & 64) != 0) {
-               threadChangeConsumer.accept(readThreadChange());
-            } else {
-               spanConsumer.accept(readSpan(flags));
+            while (blocks != null && inflated.size() < INFLATE_AHEAD) {
+               CompletableFuture<byte[]> block = readBlock(blocks);
+               if (block != null) {
+                  inflated.add(block);
+               } else {
+                  blocks.close();
+                  blocks = null;
+                  if (++segmentIndex < segments.size()) {
+                     blocks = new DataInputStream(segments.get(segmentIndex).stream());
+                     readHeader(blocks, segmentIndex);
+                  }
+               }
+            }
+            if (inflated.isEmpty()) {
+               return;
+            }
+            byte[] block;
+            try {
+               block = inflated.poll().join();
+            } catch (CompletionException e) {
+               throw new IllegalArgumentException("Cannot read block from " + input, e.getCause());
+            }
+            inputStream = new DataInputStream(new ByteArrayInputStream(block));
+            try {
+               while (inputStream.readInt() != 0) {
+                  readRecord();
+               }
+            } catch (EOFException e) {}
+         }
+      } finally {
+         if (blocks != null && blocks != inputStream) {
+            blocks.close();
+         }
+      }
+   }
+
+   /**
+    * @return Inflated block or null if there are no more blocks in this segment.
+    */
+   private CompletableFuture<byte[]> readBlock(DataInputStream blocks) throws IOException {
+      int compressedLength;
+      try {
+         compressedLength = blocks.readInt();
+      } catch (EOFException e) {
+         return null;
+      }
+      if (compressedLength == 0) {
+         return null;
+      }
+      int length = blocks.readInt();
+      byte[] compressed = new byte[compressedLength];
+      blocks.readFully(compressed);
+      return CompletableFuture.supplyAsync(() -> {
+         Inflater inflater = new Inflater();
+         try {
+            inflater.setInput(compressed);
+            byte[] block = new byte[length];
+            if (inflater.inflate(block) != length || !inflater.finished()) {
+               throw new IllegalArgumentException("Block is corrupted");
             }
+            return block;
+         } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Block is corrupted", e);
+         } finally {
+            inflater.end();
          }
-      } catch (EOFException e) {}
+      });
+   }
+
+   private void readRecord() throws IOException {
+      byte flags = inputStream.readByte();
+      if ((flags & THREAD_CHANGE_RECORD) != 0) {
+         threadChangeConsumer.accept(readThreadChange());
+      } else if ((flags & STACK_RECORD) != 0) {
+         int id = readStackId();
+         stacks.put(id, readString());
+      } else {
+         spanConsumer.accept(readSpan(flags));
+      }
    }
 
    private ThreadChange readThreadChange() throws IOException {
-      return new ThreadChange(readString(), inputStream.readLong(), inputStream.readLong());
+      String threadName = readString();
+      if (compact) {
+         return new ThreadChange(threadName, baseTimestamp + unZigZag(readVarLong()), readThreadId());
+      }
+      return new ThreadChange(threadName, inputStream.readLong(), inputStream.readLong());
    }
 
    private Span readSpan(byte flags) throws IOException {
@@ -163,16 +658,21 @@ public class BinaryPersister extends Persister {
          span.setNonCausal();
       }
       if ((flags & 2) == 0) {
-         span.setIncoming(new MessageId.Impl(inputStream.readShort(), inputStream.readInt()));
+         span.setIncoming(readMessageId());
       }
-      int outcomingCount = inputStream.readShort();
+      int outcomingCount = readCount();
       for (int i = 0; i < outcomingCount; ++i) {
-         span.addOutcoming(new MessageId.Impl(inputStream.readShort(), inputStream.readInt()));
+         span.addOutcoming(readMessageId());
       }
-      int eventCount = inputStream.readShort();
+      int eventCount = readCount();
+      long timestamp = baseTimestamp;
       for (int i = 0; i < eventCount; ++i) {
-         span.addEvent(new Span.LocalEvent(inputStream.readLong(), inputStream.readLong(),
-            Event.Type.values()[inputStream.readByte()], readObject()));
+         if (compact) {
+            timestamp += unZigZag(readVarLong());
+         } else {
+            timestamp = inputStream.readLong();
+         }
+         span.addEvent(timestamp, readThreadId(), TYPES[inputStream.readByte()], readObject());
       }
       return span;
    }
@@ -181,22 +681,118 @@ public class BinaryPersister extends Persister {
       switch (inputStream.readByte()) {
          case NULL: return null;
          case TEXT: return readString();
-         case MESSAGE_ID: return new MessageId.Impl(inputStream.readShort(), inputStream.readInt());
+         case MESSAGE_ID: return readMessageId();
          case BATCH: {
-            int num = inputStream.readShort();
+            int num = readCount();
             List<MessageId> batch = new ArrayList<>(num);
             for (int i = 0; i < num; ++i) {
-               batch.add(new MessageId.Impl(inputStream.readShort(), inputStream.readInt()));
+               batch.add(readMessageId());
             }
             return batch;
          }
-         case MESSAGE: return new Message(new MessageId.Impl(inputStream.readShort(), inputStream.readInt()), inputStream.readInt());
+         case MESSAGE: return new Message(readMessageId(), inputStream.readInt());
          case IDENTITY_HASH_CODE: return inputStream.readInt();
+         case STACK: return resolveStack(readStackId());
+         case QUANTITY: return Label.of(Label.Kind.QUANTITY, readString()).format(readLong());
+         case NUMBER: return Label.of(Label.Kind.NUMBER, readString()).format(readLong());
+         case KEY_HASH: return Label.of(Label.Kind.KEY_HASH, readString()).format(inputStream.readInt());
          default: throw new IllegalArgumentException();
       }
    }
 
+   private MessageId readMessageId() throws IOException {
+      if (compact) {
+         return new MessageId.Impl((short) unZigZag(readVarInt()), unZigZag(readVarInt()));
+      }
+      return new MessageId.Impl(inputStream.readShort(), inputStream.readInt());
+   }
+
+   private long readLong() throws IOException {
+      return compact ? unZigZag(readVarLong()) : inputStream.readLong();
+   }
+
+   private int readStackId() throws IOException {
+      return compact ? readVarInt() : inputStream.readInt();
+   }
+
+   private int readCount() throws IOException {
+      return compact ? readVarInt() : inputStream.readShort();
+   }
+
+   private long readThreadId() throws IOException {
+      if (!compact) {
+         return inputStream.readLong();
+      }
+      int index = readVarInt() - 1;
+      if (index < 0) {
+         return readVarLong();
+      } else if (index < threads.size()) {
+         return threads.get(index);
+      } else if (index == threads.size()) {
+         long threadId = readVarLong();
+         threads.add(threadId);
+         return threadId;
+      } else {
+         throw new IllegalArgumentException("Thread " + index + " was not defined in " + input);
+      }
+   }
+
    private String readString() throws IOException {
+      if (!segmented) {
+         return readAsciiString();
+      }
+      int id = readVarInt() - 1;
+      if (id < 0) {
+         return readUtf8();
+      } else if (id < strings.size()) {
+         return strings.get(id);
+      } else if (id == strings.size()) {
+         // logs from different nodes share the instances, too
+         String string = readUtf8().intern();
+         strings.add(string);
+         return string;
+      } else {
+         throw new IllegalArgumentException("String " + id + " was not defined in " + input);
+      }
+   }
+
+   private String readUtf8() throws IOException {
+      byte[] bytes = new byte[readVarInt()];
+      inputStream.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   private int readVarInt() throws IOException {
+      int value = 0;
+      for (int shift = 0; ; shift += 7) {
+         byte b = inputStream.readByte();
+         value |= (b & 0x7F) << shift;
+         if (b >= 0) {
+            return value;
+         }
+      }
+   }
+
+   private long readVarLong() throws IOException {
+      long value = 0;
+      for (int shift = 0; ; shift += 7) {
+         byte b = inputStream.readByte();
+         value |= (long) (b & 0x7F) << shift;
+         if (b >= 0) {
+            return value;
+         }
+      }
+   }
+
+   private static int unZigZag(int value) {
+      return (value >>> 1) ^ -(value & 1);
+   }
+
+   private static long unZigZag(long value) {
+      return (value >>> 1) ^ -(value & 1);
+   }
+
+   private String readAsciiString() throws IOException {
       int length = inputStream.readShort();
       char[] chars = new char[length];
       for (int i = 0; i < chars.length; ++i) {
@@ -210,11 +806,50 @@ public class BinaryPersister extends Persister {
       return 0;
    }
 
+   @Override
+   public long getWrittenBytes() {
+      // compressed data are accounted when the block is flushed
+      return finishedSegmentsBytes + (segment == null ? 0 : segment.position());
+   }
+
    @Override
    public void write(ThreadChange threadChange) throws IOException {
-      outputStream.writeByte(64);
-      writeString(threadChange.getThreadName());
-      outputStream.writeLong(threadChange.getNanoTime());
-      outputStream.writeLong(threadChange.getId());
+      for (boolean freshSegment = false; ; freshSegment = true) {
+         int start = out.position();
+         try {
+            startRecord();
+            out.put(THREAD_CHANGE_RECORD);
+            writeString(threadChange.getThreadName());
+            if (compact) {
+               writeVarLong(zigZag(threadChange.getNanoTime() - baseTimestamp));
+            } else {
+               out.putLong(threadChange.getNanoTime());
+            }
+            writeThreadId(threadChange.getId());
+            finishRecord(start);
+            return;
+         } catch (BufferOverflowException e) {
+            rollOver(start, freshSegment);
+         }
+      }
+   }
+
+   @Override
+   public void write(StackDefinition stackDefinition) throws IOException {
+      for (boolean freshSegment = false; ; freshSegment = true) {
+         int start = out.position();
+         try {
+            startRecord();
+            out.put(STACK_RECORD);
+            writeStackId(stackDefinition.getId());
+            // literal, not worth a dictionary entry as the stack is not repeated
+            writeVarInt(0);
+            writeUtf8(stackDefinition.getStack());
+            finishRecord(start);
+            return;
+         } catch (BufferOverflowException e) {
+            rollOver(start, freshSegment);
+         }
+      }
    }
 }
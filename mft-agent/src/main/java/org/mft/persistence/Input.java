@@ -25,6 +25,8 @@ package org.mft.persistence;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author Radim Vansa &lt;rvansa@redhat.com&gt;
@@ -33,4 +35,11 @@ public interface Input {
    int peek(byte[] bytes) throws IOException;
    String name();
    InputStream stream() throws IOException;
+
+   /**
+    * @return Physical parts of this input in order; each part starts with its own header.
+    */
+   default List<Input> segments() {
+      return Collections.singletonList(this);
+   }
 }
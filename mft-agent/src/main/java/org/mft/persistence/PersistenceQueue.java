@@ -0,0 +1,172 @@
+package org.mft.persistence;
+
+import org.mft.objects.Span;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded multi-producer single-consumer ring buffer handing objects over to the SpanWriter.
+ * The consumer parks when there's nothing to write and producers wake it up.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+public class PersistenceQueue {
+   public enum OverflowPolicy {
+      /* Wait until the writer makes space in the queue */
+      BLOCK,
+      /* Discard whatever is offered when the queue is full */
+      DROP_NEWEST,
+      /* Discard finished spans, but wait when trying to record other records (thread names) */
+      DROP_SPANS;
+
+      public static OverflowPolicy parse(String name) {
+         switch (name.toLowerCase()) {
+            case "block": return BLOCK;
+            case "dropnewest": return DROP_NEWEST;
+            case "dropspans": return DROP_SPANS;
+            default: throw new IllegalArgumentException("Unknown overflow policy " + name);
+         }
+      }
+   }
+
+   private static final long BLOCKED_PARK_NANOS = 100_000;
+
+   private final AtomicReferenceArray<Persistable> buffer;
+   private final int mask;
+   private final OverflowPolicy overflowPolicy;
+   private final AtomicLong tail = new AtomicLong();
+   private final AtomicLong droppedSpans = new AtomicLong();
+   private final AtomicLong droppedOther = new AtomicLong();
+   // written only by the consumer
+   private volatile long head;
+   private volatile Thread consumer;
+   private volatile boolean consumerParked;
+   private volatile boolean closed;
+
+   public PersistenceQueue(int capacity, OverflowPolicy overflowPolicy) {
+      if (capacity <= 0) {
+         throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+      }
+      int powerOfTwo = Integer.highestOneBit(capacity);
+      if (powerOfTwo < capacity) {
+         powerOfTwo <<= 1;
+      }
+      this.buffer = new AtomicReferenceArray<>(powerOfTwo);
+      this.mask = powerOfTwo - 1;
+      this.overflowPolicy = overflowPolicy;
+   }
+
+   /**
+    * @return False if the object was dropped.
+    */
+   public boolean offer(Persistable object) {
+      boolean blocked = false;
+      for (;;) {
+         if (closed) {
+            return drop(object);
+         }
+         long t = tail.get();
+         if (t - head > mask) {
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST
+               || (overflowPolicy == OverflowPolicy.DROP_SPANS && object instanceof Span)) {
+               return drop(object);
+            }
+            // make sure that the writer is not sleeping while we wait
+            if (!blocked) {
+               blocked = true;
+               wakeUp();
+            }
+            LockSupport.parkNanos(this, BLOCKED_PARK_NANOS);
+         } else if (tail.compareAndSet(t, t + 1)) {
+            // volatile write orders the publication before reading consumerParked
+            buffer.set((int) t & mask, object);
+            if (consumerParked) {
+               wakeUp();
+            }
+            return true;
+         }
+      }
+   }
+
+   private boolean drop(Persistable object) {
+      if (object instanceof Span) {
+         droppedSpans.incrementAndGet();
+      } else {
+         droppedOther.incrementAndGet();
+      }
+      return false;
+   }
+
+   /**
+    * Moves up to maxElements published objects to the collection. Must be called only by the consumer.
+    *
+    * @return Number of objects moved.
+    */
+   public int drainTo(Collection<Persistable> collection, int maxElements) {
+      long h = head;
+      int drained = 0;
+      while (drained < maxElements) {
+         int index = (int) h & mask;
+         Persistable object = buffer.get(index);
+         if (object == null) {
+            // empty or the producer has not published the object yet
+            break;
+         }
+         buffer.lazySet(index, null);
+         collection.add(object);
+         ++h;
+         ++drained;
+      }
+      head = h;
+      return drained;
+   }
+
+   /**
+    * Parks the consumer until an object is offered, the timeout elapses or the consumer is woken up.
+    */
+   public void await(long timeoutNanos) {
+      consumer = Thread.currentThread();
+      consumerParked = true;
+      if (buffer.get((int) head & mask) == null) {
+         LockSupport.parkNanos(this, timeoutNanos);
+      }
+      consumerParked = false;
+   }
+
+   public void wakeUp() {
+      Thread consumer = this.consumer;
+      if (consumer != null) {
+         LockSupport.unpark(consumer);
+      }
+   }
+
+   /**
+    * After closing the queue all offered objects are dropped.
+    */
+   public void close() {
+      closed = true;
+   }
+
+   public boolean isEmpty() {
+      return tail.get() == head;
+   }
+
+   public int size() {
+      return (int) (tail.get() - head);
+   }
+
+   public int capacity() {
+      return mask + 1;
+   }
+
+   public long getDroppedSpans() {
+      return droppedSpans.get();
+   }
+
+   public long getDroppedOther() {
+      return droppedOther.get();
+   }
+}
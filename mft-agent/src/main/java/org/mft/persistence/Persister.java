@@ -2,9 +2,12 @@ package org.mft.persistence;
 
 import org.mft.objects.Header;
 import org.mft.objects.Span;
+import org.mft.objects.StackDefinition;
 import org.mft.objects.ThreadChange;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.function.Consumer;
 
 /**
@@ -15,6 +18,8 @@ public abstract class Persister {
    protected Consumer<Span> spanConsumer;
    protected boolean loadEvents;
    protected Consumer<ThreadChange> threadChangeConsumer;
+   // stack definitions read so far
+   protected final Map<Integer, String> stacks = new HashMap<>();
 
    protected Persister(Input input) {
       this.input = input;
@@ -49,5 +54,20 @@ public abstract class Persister {
 
    public abstract int getPosition();
 
+   /**
+    * @return Number of bytes written since {@link #openForWrite(String, Header)}.
+    */
+   public abstract long getWrittenBytes();
+
    public abstract void write(ThreadChange threadChange) throws IOException;
+
+   public abstract void write(StackDefinition stackDefinition) throws IOException;
+
+   /**
+    * @return Stack defined earlier in the log, or placeholder if the definition was lost.
+    */
+   protected String resolveStack(int id) {
+      String stack = stacks.get(id);
+      return stack != null ? stack : "Unknown stack #" + id;
+   }
 }
@@ -1,20 +1,22 @@
 package org.mft.persistence;
 
 import org.mft.objects.Event;
+import org.mft.objects.EventStore;
 import org.mft.objects.Header;
 import org.mft.objects.Message;
 import org.mft.objects.MessageId;
 import org.mft.objects.Span;
+import org.mft.objects.StackDefinition;
 import org.mft.objects.ThreadChange;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 import java.util.function.Consumer;
 
@@ -27,10 +29,14 @@ public class TextPersister extends Persister {
    public static final String SPAN = "SPAN";
    public static final String EVENT = "E";
    private static final String THREAD = "THREAD";
+   private static final String STACK = "STACK";
    private BufferedReader reader;
    private PrintStream printStream = null;
    private String prefix = "";
    private int lineNumber;
+   private long writtenBytes;
+   // stacks are referenced by id only in span logs, where the definitions are written
+   private boolean stackIds;
 
    public TextPersister() {}
 
@@ -46,7 +52,21 @@ public class TextPersister extends Persister {
    @Override
    public void openForWrite(String path, Header header) throws IOException {
       close();
-      printStream = new PrintStream(new BufferedOutputStream(new FileOutputStream(path)));
+      writtenBytes = 0;
+      stackIds = true;
+      printStream = new PrintStream(new BufferedOutputStream(new FilterOutputStream(new FileOutputStream(path)) {
+         @Override
+         public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            writtenBytes += len;
+         }
+
+         @Override
+         public void write(int b) throws IOException {
+            out.write(b);
+            ++writtenBytes;
+         }
+      }));
       printStream.write(TAG);
       printStream.printf(";%d;%d\n", header.getNanoTime(), header.getUnixTime());
    }
@@ -86,38 +106,45 @@ public class TextPersister extends Persister {
          }
       }
       printStream.println();
-      Collection<Span.LocalEvent> events = sort ? span.getSortedEvents() : span.getEvents();
-      for (Span.LocalEvent evt : events) {
+      EventStore events = span.getEventStore();
+      int[] order = sort ? events.sortedOrder() : null;
+      for (int j = 0; j < events.size(); ++j) {
+         int i = order == null ? j : order[j];
+         // labels are formatted right away, text log is not meant to be compact
+         Object payload = events.formattedPayload(i);
          printStream.print(prefix);
          printStream.print(EVENT);
          printStream.print(';');
-         printStream.print(evt.timestamp);
+         printStream.print(events.timestamp(i));
          printStream.print(';');
-         printStream.print(evt.threadId);
+         printStream.print(events.threadId(i));
          printStream.print(';');
-         printStream.print(evt.type);
+         printStream.print(events.type(i));
          printStream.print(';');
-         if (evt.payload instanceof List) {
-            for (Object item : (List) evt.payload) {
+         if (payload instanceof List) {
+            for (Object item : (List) payload) {
                printStream.print('B');
                printStream.print(item);
                printStream.print(',');
             }
-         } else if (evt.payload instanceof MessageId) {
+         } else if (payload instanceof MessageId) {
             printStream.print('M');
-            printStream.print(evt.payload);
-         } else if (evt.payload instanceof Message) {
+            printStream.print(payload);
+         } else if (payload instanceof Message) {
             printStream.print('N');
-            Message msg = (Message) evt.payload;
+            Message msg = (Message) payload;
             printStream.print(msg.id());
             printStream.print(',');
             printStream.print(msg.identityHashCode());
-         } else if (evt.payload != null){
-            printStream.print('T');
-            printStream.print(evt.payload);
-         } else if (evt.payload instanceof Integer) {
+         } else if (payload instanceof StackDefinition && stackIds) {
+            printStream.print('S');
+            printStream.print(((StackDefinition) payload).getId());
+         } else if (payload instanceof Integer) {
             printStream.print('H');
-            printStream.print(((Integer) evt.payload).intValue());
+            printStream.print(((Integer) payload).intValue());
+         } else if (payload != null){
+            printStream.print('T');
+            printStream.print(payload);
          }
          printStream.println();
       }
@@ -151,6 +178,11 @@ public class TextPersister extends Persister {
             if (line.startsWith(THREAD)) {
                String[] parts = line.split(";");
                threadChangeConsumer.accept(new ThreadChange(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+               span = null;
+            } else if (line.startsWith(STACK)) {
+               int index = line.indexOf(';', STACK.length() + 1);
+               stacks.put(Integer.parseInt(line.substring(STACK.length() + 1, index)), line.substring(index + 1));
+               span = null;
             } else {
                span = new Span();
                int start;
@@ -165,6 +197,9 @@ public class TextPersister extends Persister {
             }
          }
       }
+      if (span != null) {
+         spanConsumer.accept(span);
+      }
    }
 
    public void readSpan(String line, Span span, int start) {
@@ -224,10 +259,12 @@ public class TextPersister extends Persister {
          payload = new Message(parseMessageId(text, 1, index), Integer.parseInt(text.substring(index + 1)));
       } else if (text.charAt(0) == 'H') {
          payload = Integer.parseInt(text.substring(1));
+      } else if (text.charAt(0) == 'S') {
+         payload = resolveStack(Integer.parseInt(text.substring(1)));
       } else {
          throw new IllegalArgumentException(text);
       }
-      span.addEvent(new Span.LocalEvent(timestamp, threadId, type, payload));
+      span.addEvent(timestamp, threadId, type, payload);
    }
 
    public MessageId parseMessageId(String text, int fromIndex, int toIndex) {
@@ -240,6 +277,11 @@ public class TextPersister extends Persister {
       return lineNumber;
    }
 
+   @Override
+   public long getWrittenBytes() {
+      return writtenBytes;
+   }
+
    @Override
    public void write(ThreadChange threadChange) throws IOException {
       printStream.print(THREAD);
@@ -251,4 +293,14 @@ public class TextPersister extends Persister {
       printStream.print(threadChange.getId());
       printStream.println();
    }
+
+   @Override
+   public void write(StackDefinition stackDefinition) throws IOException {
+      printStream.print(STACK);
+      printStream.print(';');
+      printStream.print(stackDefinition.getId());
+      printStream.print(';');
+      printStream.print(stackDefinition.getStack());
+      printStream.println();
+   }
 }
@@ -0,0 +1,128 @@
+package org.mft.benchmarks;
+
+import org.mft.Tracer;
+import org.mft.objects.MessageId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hooks called from the instrumented code, each benchmark goes through the whole control flow so that
+ * the spans are finished and persisted as in the traced application. With tracing=false the same objects
+ * are created but no tracer is loaded; that's the baseline. Use -t to run the hooks from more threads
+ * and -prof gc for the allocation rate.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Dorg.mft.nodeId=1", "-Dorg.mft.binarySpans=true", "-Dorg.mft.compactSpans=true",
+      "-Dorg.mft.compressSpans=true", "-Dorg.mft.jmx=false" })
+public class TracerBenchmark {
+   private static final int BATCH_SIZE = 8;
+   private static final int CHECKPOINTS = 16;
+
+   @Param({ "true", "false" })
+   boolean tracing;
+
+   private Tracer tracer;
+   private int messageCounter;
+
+   @Setup
+   public void setup() {
+      if (tracing) {
+         tracer = Tracer.getInstance();
+         tracer.recordThreadName(Thread.currentThread());
+      }
+   }
+
+   private MessageId nextMessageId() {
+      return new MessageId.Impl((short) 1, messageCounter++);
+   }
+
+   /**
+    * The task is handed over to another thread; here the executing thread is the same one, after the origin
+    * has left the context.
+    */
+   @Benchmark
+   public void handover(Blackhole blackhole) {
+      Object task = new Object();
+      if (!tracing) {
+         blackhole.consume(task);
+         return;
+      }
+      tracer.createManagedContext();
+      tracer.threadHandoverStarted(task);
+      tracer.threadHandoverCompleted();
+      tracer.destroyManagedContext();
+      tracer.threadHandoverSuccess(task);
+      tracer.threadProcessingCompleted();
+   }
+
+   @Benchmark
+   public void outcoming(Blackhole blackhole) {
+      MessageId messageId = nextMessageId();
+      if (!tracing) {
+         blackhole.consume(messageId);
+         return;
+      }
+      tracer.createManagedContext();
+      tracer.outcomingStarted(null, messageId);
+      tracer.outcomingFinished();
+      tracer.destroyManagedContext();
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(BATCH_SIZE)
+   public void batch(Blackhole blackhole) {
+      List<MessageId> messageIds = new ArrayList<>(BATCH_SIZE);
+      for (int i = 0; i < BATCH_SIZE; ++i) {
+         messageIds.add(nextMessageId());
+      }
+      if (!tracing) {
+         blackhole.consume(messageIds);
+         return;
+      }
+      tracer.incomingData(BATCH_SIZE * 100);
+      tracer.batchProcessingStart(messageIds);
+      for (MessageId messageId : messageIds) {
+         tracer.batchPush(messageId);
+         tracer.batchPop();
+      }
+      tracer.batchProcessingEnd();
+      tracer.threadProcessingCompleted();
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(CHECKPOINTS)
+   public void checkpoint(Blackhole blackhole) {
+      if (!tracing) {
+         for (int i = 0; i < CHECKPOINTS; ++i) {
+            blackhole.consume("checkpoint");
+         }
+         return;
+      }
+      tracer.createManagedContext();
+      for (int i = 0; i < CHECKPOINTS; ++i) {
+         tracer.checkpoint("checkpoint");
+      }
+      tracer.destroyManagedContext();
+   }
+}
@@ -35,7 +35,8 @@ public class Identifier extends Protocol {
    public Object down(Event evt) {
       if (evt.getType() == Event.MSG) {
          Message msg = (Message) evt.getArg();
-         msg.putHeader(id, new Header(MessageId.NODE_ID, counter.getAndIncrement()));
+         // the decision of head-based sampling travels with the message
+         msg.putHeader(id, new Header(MessageId.NODE_ID, counter.getAndIncrement(), Tracer.getInstance().isSampled()));
       }
       return super.down(evt);
    }
@@ -46,31 +47,45 @@ public class Identifier extends Protocol {
    }
 
    public static class Header extends org.jgroups.Header implements MessageId {
+      private static final byte NOT_SAMPLED = 1;
       private short node;
       private int id;
+      private byte flags;
 
       public Header() {}
 
       public Header(short node, int id) {
+         this(node, id, true);
+      }
+
+      public Header(short node, int id, boolean sampled) {
          this.node = node;
          this.id = id;
+         this.flags = sampled ? 0 : NOT_SAMPLED;
       }
 
       @Override
       public int size() {
-         return 10;
+         return 11;
       }
 
       @Override
       public void writeTo(DataOutput out) throws Exception {
          out.writeShort(MessageId.NODE_ID);
          out.writeInt(id);
+         out.writeByte(flags);
       }
 
       @Override
       public void readFrom(DataInput in) throws Exception {
          node = in.readShort();
          id = in.readInt();
+         flags = in.readByte();
+      }
+
+      @Override
+      public boolean isSampled() {
+         return (flags & NOT_SAMPLED) == 0;
       }
 
       @Override
@@ -0,0 +1,31 @@
+package org.mft.instrument;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Instruments selected methods of one class.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+abstract class AdviceClassVisitor extends ClassVisitor {
+   AdviceClassVisitor(ClassVisitor cv) {
+      super(Opcodes.ASM9, cv);
+   }
+
+   @Override
+   public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+      MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+      if (mv == null || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+         return mv;
+      }
+      MethodVisitor advice = advise(mv, access, name, desc);
+      return advice == null ? mv : advice;
+   }
+
+   /**
+    * @return Visitor instrumenting the method or null if the method should be kept intact.
+    */
+   protected abstract MethodVisitor advise(MethodVisitor mv, int access, String name, String desc);
+}
@@ -0,0 +1,57 @@
+package org.mft.instrument;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Java agent instrumenting executors and JGroups transport with compiled calls to {@link org.mft.Tracer},
+ * replacing the respective Byteman rules.
+ *
+ * Agent arguments are comma-separated hook groups: executors, jgroups. By default all groups are used.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+public class Agent {
+   public static final String EXECUTORS = "executors";
+   public static final String JGROUPS = "jgroups";
+
+   public static void premain(String args, Instrumentation instrumentation) throws Exception {
+      Set<String> groups = new HashSet<>();
+      if (args == null || args.isEmpty()) {
+         groups.add(EXECUTORS);
+         groups.add(JGROUPS);
+      } else {
+         groups.addAll(Arrays.asList(args.split(",")));
+      }
+      if (groups.contains(EXECUTORS) && !isOnBootClassPath("org.mft.Tracer")) {
+         System.err.println("org.mft.Tracer is not on boot classpath, cannot instrument executors.");
+         groups.remove(EXECUTORS);
+      }
+      TracerTransformer transformer = new TracerTransformer(groups);
+      instrumentation.addTransformer(transformer, true);
+
+      // JDK classes are already loaded
+      List<Class<?>> loaded = new ArrayList<>();
+      for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+         if (transformer.handles(clazz.getName().replace('.', '/'))) {
+            loaded.add(clazz);
+         }
+      }
+      if (!loaded.isEmpty()) {
+         instrumentation.retransformClasses(loaded.toArray(new Class<?>[loaded.size()]));
+      }
+   }
+
+   private static boolean isOnBootClassPath(String className) {
+      try {
+         Class.forName(className, false, null);
+         return true;
+      } catch (ClassNotFoundException e) {
+         return false;
+      }
+   }
+}
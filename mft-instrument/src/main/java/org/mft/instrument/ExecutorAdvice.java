@@ -0,0 +1,98 @@
+package org.mft.instrument;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Compiled counterpart of executors-wrapping.btm: tasks are wrapped with the span when submitted to executors,
+ * and thread names are recorded. ForkJoinPool is not instrumented.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+final class ExecutorAdvice {
+   private static final String RUNNABLE = "Ljava/lang/Runnable;";
+   private static final String SCHEDULED_TASK = "Ljava/util/concurrent/RunnableScheduledFuture;";
+
+   private ExecutorAdvice() {}
+
+   static void register(Map<String, Function<ClassVisitor, ClassVisitor>> advices) {
+      advices.put("java/util/concurrent/ThreadPoolExecutor", cv -> new AdviceClassVisitor(cv) {
+         @Override
+         protected MethodVisitor advise(MethodVisitor mv, int access, String name, String desc) {
+            if (name.equals("execute") && desc.equals("(" + RUNNABLE + ")V")) {
+               return new TracerAdvice(mv, access, name, desc) {
+                  @Override
+                  protected void onMethodEnter() {
+                     loadTracer();
+                     loadArg(0);
+                     invokeTracer("wrapRunnable", "(" + RUNNABLE + ")" + RUNNABLE);
+                     storeArg(0);
+                  }
+
+                  @Override
+                  protected void onReturn() {
+                     loadTracer();
+                     invokeTracer("threadHandoverCompleted", "()V");
+                  }
+               };
+            } else if (name.equals("reject") && desc.equals("(" + RUNNABLE + ")V")) {
+               return new TracerAdvice(mv, access, name, desc) {
+                  @Override
+                  protected void onMethodEnter() {
+                     loadTracer();
+                     loadArg(0);
+                     invokeTracer("wrappedHandoverFailure", "(Ljava/lang/Object;)V");
+                  }
+               };
+            }
+            return null;
+         }
+      });
+      advices.put("java/util/concurrent/ScheduledThreadPoolExecutor", cv -> new AdviceClassVisitor(cv) {
+         @Override
+         protected MethodVisitor advise(MethodVisitor mv, int access, String name, String desc) {
+            if (name.equals("decorateTask") && desc.endsWith(")" + SCHEDULED_TASK)) {
+               // the decorated task is both queued and returned to the caller
+               return new TracerAdvice(mv, access, name, desc) {
+                  @Override
+                  protected void onReturn() {
+                     loadTracer();
+                     swap();
+                     invokeTracer("wrapScheduledTask", "(" + SCHEDULED_TASK + ")" + SCHEDULED_TASK);
+                  }
+               };
+            } else if (name.equals("delayedExecute") && desc.equals("(" + SCHEDULED_TASK + ")V")) {
+               return new TracerAdvice(mv, access, name, desc) {
+                  @Override
+                  protected void onReturn() {
+                     loadTracer();
+                     invokeTracer("threadHandoverCompleted", "()V");
+                  }
+               };
+            }
+            return null;
+         }
+      });
+      advices.put("java/lang/Thread", cv -> new AdviceClassVisitor(cv) {
+         @Override
+         protected MethodVisitor advise(MethodVisitor mv, int access, String name, String desc) {
+            // Thread.init signature differs between JDK versions, the name matters only once the thread runs
+            if ((name.equals("start") && desc.equals("()V"))
+                  || (name.equals("setName") && desc.equals("(Ljava/lang/String;)V"))) {
+               return new TracerAdvice(mv, access, name, desc) {
+                  @Override
+                  protected void onReturn() {
+                     loadTracer();
+                     loadThis();
+                     invokeTracer("recordThreadName", "(Ljava/lang/Thread;)V");
+                  }
+               };
+            }
+            return null;
+         }
+      });
+   }
+}
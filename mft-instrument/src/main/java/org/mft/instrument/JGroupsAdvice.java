@@ -0,0 +1,275 @@
+package org.mft.instrument;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Compiled counterpart of jgroups-transport.btm (JGroups 3.6.x).
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+final class JGroupsAdvice {
+   private static final String TP = "org/jgroups/protocols/TP";
+   private static final String MESSAGE = "Lorg/jgroups/Message;";
+   private static final String MESSAGE_BATCH = "Lorg/jgroups/util/MessageBatch;";
+   private static final String LIST = "Ljava/util/List;";
+   private static final String IDENTIFIER = "org/mft/MessageIdentifier368";
+   private static final String HANDLE_DESC = "(Lorg/jgroups/Address;[BII)V";
+   private static final String WRITE_TO_NO_ADDRS_DESC = "(Lorg/jgroups/Address;Ljava/io/DataOutput;[S)V";
+
+   private JGroupsAdvice() {}
+
+   static void register(Map<String, Function<ClassVisitor, ClassVisitor>> advices) {
+      advices.put("org/jgroups/stack/ProtocolStack", cv -> new AdviceClassVisitor(cv) {
+         @Override
+         protected MethodVisitor advise(MethodVisitor mv, int access, String name, String desc) {
+            if (!name.equals("initProtocolStack") || !desc.equals("()V")) {
+               return null;
+            }
+            return new TracerAdvice(mv, access, name, desc) {
+               @Override
+               protected void onReturn() {
+                  loadThis();
+                  invokeStatic("org/mft/Identifier", "install", "(Lorg/jgroups/stack/ProtocolStack;)V");
+               }
+            };
+         }
+      });
+      advices.put("org/jgroups/protocols/UDP$PacketReceiver", cv -> new AdviceClassVisitor(cv) {
+         @Override
+         protected MethodVisitor advise(MethodVisitor mv, int access, String name, String desc) {
+            if (!name.equals("run") || !desc.equals("()V")) {
+               return null;
+            }
+            return new TracerAdvice(mv, access, name, desc) {
+               int packet;
+
+               @Override
+               protected void onMethodEnter() {
+                  packet = newInitializedLocal(Type.getObjectType("java/net/DatagramPacket"));
+               }
+
+               @Override
+               protected void beforeInvoke(String owner, String name, String desc) {
+                  if (owner.equals("java/net/DatagramSocket") && name.equals("receive")) {
+                     dup();
+                     storeLocal(packet);
+                  }
+               }
+
+               @Override
+               protected void afterInvoke(String owner, String name, String desc) {
+                  if (owner.equals("java/net/DatagramSocket") && name.equals("receive")) {
+                     loadTracer();
+                     loadLocal(packet);
+                     mv.visitMethodInsn(INVOKEVIRTUAL, "java/net/DatagramPacket", "getLength", "()I", false);
+                     invokeTracer("incomingData", "(I)V");
+                  }
+               }
+            };
+         }
+      });
+      advices.put("org/jgroups/blocks/cs/TcpConnection$Receiver", cv -> new AdviceClassVisitor(cv) {
+         @Override
+         protected MethodVisitor advise(MethodVisitor mv, int access, String name, String desc) {
+            if (!name.equals("run") || !desc.equals("()V")) {
+               return null;
+            }
+            return new TracerAdvice(mv, access, name, desc) {
+               int length;
+
+               private boolean isReadFully(String owner, String name, String desc) {
+                  return owner.equals("java/io/DataInputStream") && name.equals("readFully") && desc.equals("([BII)V");
+               }
+
+               @Override
+               protected void onMethodEnter() {
+                  length = newInitializedLocal(Type.INT_TYPE);
+               }
+
+               @Override
+               protected void beforeInvoke(String owner, String name, String desc) {
+                  if (isReadFully(owner, name, desc)) {
+                     dup();
+                     storeLocal(length);
+                  }
+               }
+
+               @Override
+               protected void afterInvoke(String owner, String name, String desc) {
+                  if (isReadFully(owner, name, desc)) {
+                     loadTracer();
+                     loadLocal(length);
+                     invokeTracer("incomingData", "(I)V");
+                  }
+               }
+            };
+         }
+      });
+      advices.put(TP, cv -> new AdviceClassVisitor(cv) {
+         @Override
+         protected MethodVisitor advise(MethodVisitor mv, int access, String name, String desc) {
+            if ((name.equals("handleSingleMessage") || name.equals("handleMessageBatch")) && desc.equals(HANDLE_DESC)) {
+               return new TracerAdvice(mv, access, name, desc) {
+                  @Override
+                  protected void beforeInvoke(String owner, String name, String desc) {
+                     if (owner.equals("java/util/concurrent/Executor") && name.equals("execute")) {
+                        loadTracer();
+                        invokeTracer("forkSpan", "()V");
+                     }
+                  }
+
+                  @Override
+                  protected void afterInvoke(String owner, String name, String desc) {
+                     if (owner.equals("java/util/concurrent/Executor") && name.equals("execute")) {
+                        loadTracer();
+                        invokeTracer("unforkSpan", "()V");
+                     }
+                  }
+
+                  @Override
+                  protected void onReturn() {
+                     loadTracer();
+                     invokeTracer("threadProcessingCompleted", "()V");
+                  }
+               };
+            } else if (name.equals("send") && desc.equals("(" + MESSAGE + "Lorg/jgroups/Address;)V")) {
+               return new TracerAdvice(mv, access, name, desc) {
+                  @Override
+                  protected void beforeInvoke(String owner, String name, String desc) {
+                     if (owner.equals(TP + "$Bundler") && name.equals("send")) {
+                        // the message is on top of the stack
+                        dup();
+                        loadTracer();
+                        swap();
+                        invokeTracer("threadHandoverStarted", "(Ljava/lang/Object;)V");
+                     }
+                  }
+               };
+            } else if (name.equals("writeMessage") && desc.startsWith("(" + MESSAGE)) {
+               return new TracerAdvice(mv, access, name, desc) {
+                  @Override
+                  protected void onReturn() {
+                     loadTracer();
+                     loadArg(0);
+                     loadArg(0);
+                     invokeStatic(IDENTIFIER, "getMessageIdentifier", "(" + MESSAGE + ")" + MESSAGE_ID);
+                     invokeTracer("outcomingStarted", "(Ljava/lang/Object;" + MESSAGE_ID + ")Z");
+                     pop();
+                  }
+               };
+            } else if (name.equals("writeMessageList")) {
+               return new TracerAdvice(mv, access, name, desc) {
+                  @Override
+                  protected void onReturn() {
+                     loadTracer();
+                     loadArg(3);
+                     loadArg(3);
+                     invokeStatic(IDENTIFIER, "getMessageIdentifiers", "(" + LIST + ")" + LIST);
+                     invokeTracer("outcomingStarted", "(" + LIST + LIST + ")V");
+                  }
+               };
+            } else if (name.equals("doSend")) {
+               return new TracerAdvice(mv, access, name, desc) {
+                  @Override
+                  protected void onReturn() {
+                     loadTracer();
+                     invokeTracer("outcomingFinished", "()V");
+                  }
+               };
+            }
+            return null;
+         }
+      });
+      advices.put(TP + "$SingleMessageHandler", cv -> new AdviceClassVisitor(cv) {
+         @Override
+         protected MethodVisitor advise(MethodVisitor mv, int access, String name, String desc) {
+            if (!name.equals("run") || !desc.equals("()V")) {
+               return null;
+            }
+            return new TracerAdvice(mv, access, name, desc) {
+               @Override
+               protected void beforeInvoke(String owner, String name, String desc) {
+                  if (owner.equals(TP) && name.equals("passMessageUp")) {
+                     loadTracer();
+                     loadThis();
+                     getField(Type.getObjectType(TP + "$SingleMessageHandler"), "msg", Type.getType(MESSAGE));
+                     invokeStatic(IDENTIFIER, "getMessageIdentifier", "(" + MESSAGE + ")" + MESSAGE_ID);
+                     invokeTracer("handlingMessage", "(" + MESSAGE_ID + ")V");
+                  }
+               }
+            };
+         }
+      });
+      advices.put(TP + "$BatchHandler", cv -> new AdviceClassVisitor(cv) {
+         @Override
+         protected MethodVisitor advise(MethodVisitor mv, int access, String name, String desc) {
+            if (!name.equals("run") || !desc.equals("()V")) {
+               return null;
+            }
+            return new TracerAdvice(mv, access, name, desc) {
+               @Override
+               protected void beforeInvoke(String owner, String name, String desc) {
+                  if (owner.equals(TP) && name.equals("passBatchUp")) {
+                     loadTracer();
+                     loadThis();
+                     getField(Type.getObjectType(TP + "$BatchHandler"), "batch", Type.getType(MESSAGE_BATCH));
+                     invokeStatic(IDENTIFIER, "getMessageIdentifiers", "(" + MESSAGE_BATCH + ")" + LIST);
+                     invokeTracer("batchProcessingStart", "(" + LIST + ")V");
+                  }
+               }
+
+               @Override
+               protected void afterInvoke(String owner, String name, String desc) {
+                  if (owner.equals(TP) && name.equals("passBatchUp")) {
+                     loadTracer();
+                     invokeTracer("batchProcessingEnd", "()V");
+                  }
+               }
+            };
+         }
+      });
+      advices.put(TP + "$SimplifiedTransferQueueBundler", cv -> new AdviceClassVisitor(cv) {
+         @Override
+         protected MethodVisitor advise(MethodVisitor mv, int access, String name, String desc) {
+            if (!name.equals("sendBundledMessages")) {
+               return null;
+            }
+            return new TracerAdvice(mv, access, name, desc) {
+               int[] writeLocals;
+               int message;
+
+               @Override
+               protected void onMethodEnter() {
+                  writeLocals = newCaptureLocals("org/jgroups/Message", WRITE_TO_NO_ADDRS_DESC);
+               }
+
+               @Override
+               protected void beforeInvoke(String owner, String name, String desc) {
+                  if (owner.equals("org/jgroups/Message") && name.equals("writeToNoAddrs")
+                        && desc.equals(WRITE_TO_NO_ADDRS_DESC)) {
+                     message = captureTarget(writeLocals);
+                  }
+               }
+
+               @Override
+               protected void afterInvoke(String owner, String name, String desc) {
+                  if (owner.equals("org/jgroups/Message") && name.equals("writeToNoAddrs")
+                        && desc.equals(WRITE_TO_NO_ADDRS_DESC)) {
+                     loadTracer();
+                     loadLocal(message);
+                     loadLocal(message);
+                     invokeStatic(IDENTIFIER, "getMessageIdentifier", "(" + MESSAGE + ")" + MESSAGE_ID);
+                     invokeTracer("outcomingStarted", "(Ljava/lang/Object;" + MESSAGE_ID + ")Z");
+                     pop();
+                  }
+               }
+            };
+         }
+      });
+   }
+}
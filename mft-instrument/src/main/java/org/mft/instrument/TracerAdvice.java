@@ -0,0 +1,120 @@
+package org.mft.instrument;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+/**
+ * Base for method advices calling the tracer. Hooks mirror Byteman locations: AT ENTRY, AT EXIT
+ * (normal returns only), AT INVOKE and AFTER INVOKE.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+abstract class TracerAdvice extends AdviceAdapter {
+   static final String TRACER = "org/mft/Tracer";
+   static final String MESSAGE_ID = "Lorg/mft/objects/MessageId;";
+
+   TracerAdvice(MethodVisitor mv, int access, String name, String desc) {
+      super(Opcodes.ASM9, mv, access, name, desc);
+   }
+
+   /**
+    * Pushes the tracer instance; push arguments and call {@link #invokeTracer(String, String)} afterwards.
+    */
+   protected void loadTracer() {
+      mv.visitMethodInsn(INVOKESTATIC, TRACER, "getInstance", "()L" + TRACER + ";", false);
+   }
+
+   protected void invokeTracer(String name, String desc) {
+      mv.visitMethodInsn(INVOKEVIRTUAL, TRACER, name, desc, false);
+   }
+
+   protected void invokeStatic(String owner, String name, String desc) {
+      mv.visitMethodInsn(INVOKESTATIC, owner, name, desc, false);
+   }
+
+   @Override
+   protected void onMethodExit(int opcode) {
+      if (opcode != ATHROW) {
+         onReturn();
+      }
+   }
+
+   protected void onReturn() {
+   }
+
+   @Override
+   public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean isInterface) {
+      beforeInvoke(owner, name, desc);
+      super.visitMethodInsn(opcode, owner, name, desc, isInterface);
+      afterInvoke(owner, name, desc);
+   }
+
+   protected void beforeInvoke(String owner, String name, String desc) {
+   }
+
+   protected void afterInvoke(String owner, String name, String desc) {
+   }
+
+   /**
+    * Allocates local variable initialized on method entry; the variable is then assigned in all stack map
+    * frames. Must be called from {@link #onMethodEnter()}.
+    */
+   protected int newInitializedLocal(Type type) {
+      int local = newLocal(type);
+      switch (type.getSort()) {
+         case Type.OBJECT:
+         case Type.ARRAY:
+            mv.visitInsn(ACONST_NULL);
+            break;
+         case Type.LONG:
+            push(0L);
+            break;
+         case Type.FLOAT:
+            push(0f);
+            break;
+         case Type.DOUBLE:
+            push(0d);
+            break;
+         default:
+            push(0);
+      }
+      storeLocal(local);
+      return local;
+   }
+
+   /**
+    * Allocates local variables for arguments and target of invoked instance method.
+    * Must be called from {@link #onMethodEnter()}.
+    */
+   protected int[] newCaptureLocals(String owner, String desc) {
+      Type[] argumentTypes = Type.getArgumentTypes(desc);
+      int[] locals = new int[argumentTypes.length + 1];
+      for (int i = 0; i < argumentTypes.length; ++i) {
+         locals[i] = newInitializedLocal(argumentTypes[i]);
+      }
+      locals[argumentTypes.length] = newInitializedLocal(Type.getObjectType(owner));
+      return locals;
+   }
+
+   /**
+    * Called before invocation of instance method, stores the target object into local variable
+    * and keeps the operand stack intact.
+    *
+    * @param locals Allocated through {@link #newCaptureLocals(String, String)}
+    * @return Index of the local variable with the target
+    */
+   protected int captureTarget(int[] locals) {
+      int target = locals[locals.length - 1];
+      for (int i = locals.length - 2; i >= 0; --i) {
+         storeLocal(locals[i]);
+      }
+      dup();
+      storeLocal(target);
+      for (int i = 0; i < locals.length - 1; ++i) {
+         loadLocal(locals[i]);
+      }
+      return target;
+   }
+}
@@ -0,0 +1,59 @@
+package org.mft.instrument;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Applies advices registered for the class name.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+class TracerTransformer implements ClassFileTransformer {
+   private final Map<String, Function<ClassVisitor, ClassVisitor>> advices = new HashMap<>();
+
+   TracerTransformer(Set<String> groups) {
+      if (groups.contains(Agent.EXECUTORS)) {
+         ExecutorAdvice.register(advices);
+      }
+      if (groups.contains(Agent.JGROUPS)) {
+         JGroupsAdvice.register(advices);
+      }
+   }
+
+   boolean handles(String internalName) {
+      return advices.containsKey(internalName);
+   }
+
+   @Override
+   public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                           ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+      Function<ClassVisitor, ClassVisitor> advice = advices.get(className);
+      if (advice == null) {
+         return null;
+      }
+      // the advice must be able to link helper classes from the instrumented class
+      if (loader != null && loader.getResource("org/mft/Tracer.class") == null) {
+         System.err.println("Cannot instrument " + className + ": tracer classes are not visible from " + loader);
+         return null;
+      }
+      try {
+         ClassReader reader = new ClassReader(classfileBuffer);
+         ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+         reader.accept(advice.apply(writer), ClassReader.EXPAND_FRAMES);
+         return writer.toByteArray();
+      } catch (Throwable t) {
+         // exceptions thrown from transformer are silently ignored
+         System.err.println("Failed to instrument " + className);
+         t.printStackTrace();
+         return null;
+      }
+   }
+}
@@ -22,6 +22,8 @@
 
 package org.mft;
 
+import java.io.File;
+
 import org.mft.logic.Composer;
 import org.mft.persistence.Input;
 import org.mft.logic.InputFactory;
@@ -92,6 +94,18 @@ public class Main {
                return;
             }
             composer.setMaxTraces(Long.parseLong(args[++i]));
+         } else if (args[i].equals("-oh")) {
+            if (i + 1 >= args.length) {
+               printUsage();
+               return;
+            }
+            composer.setOffHeapDirectory(new File(args[++i]));
+         } else if (args[i].equals("-s")) {
+            if (i + 1 >= args.length) {
+               printUsage();
+               return;
+            }
+            composer.setSinglePassMargin(Long.parseLong(args[++i]));
          } else if (args[i].startsWith("-")) {
             System.err.println("Unknown option " + args[i]);
             printUsage();
@@ -128,6 +142,8 @@ public class Main {
       System.err.println("\t-d milliseconds\tMaximum difference between highest processed timestamp in second-pass threads");
       System.err.println("\t-mm N          \tStop second-pass processing after consuming N messages");
       System.err.println("\t-mt N          \tStop second-pass processing after consuming N traces");
+      System.err.println("\t-oh dir        \tKeep message reference counts in memory-mapped files in dir instead of heap");
+      System.err.println("\t-s milliseconds\tRead span logs only once, complete traces when all logs are this far past the last event");
       System.err.println("\t-f filter:args \tFilter printed traces. Available filters: ");
       Filters.printUsage();
    }
@@ -25,28 +25,29 @@ package org.mft.logic;
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLongArray;
-import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Function;
 import java.util.function.LongConsumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import org.mft.objects.Event;
+import org.mft.objects.EventStore;
 import org.mft.objects.Header;
 import org.mft.objects.Message;
 import org.mft.objects.MessageId;
-import org.mft.objects.Span;
 import org.mft.objects.ThreadChange;
 import org.mft.objects.Trace;
 import org.mft.persistence.FlightRecording;
@@ -63,21 +64,31 @@ public class Composer extends Logic {
    // this map is populated in first pass and should contain the number of references to each message
    // in second pass it is only read and when the counter reaches zero for all messages in the trace
    // the trace is ready to be written to file
-   private ConcurrentMap<MessageId, AtomicInteger> messageReferences = new ConcurrentHashMap<>();
+   private MessageReferenceTable messageReferences;
    private AtomicInteger messagesRead = new AtomicInteger(0);
-   private ConcurrentMap<MessageId, Trace> traces = new ConcurrentHashMap<>();
+   // messages from one span are connected in the first pass, in second pass each message maps to a trace id
+   private TraceConnectivity connectivity = new TraceConnectivity();
+   private AtomicReferenceArray<Trace> traces;
+   // sum of message references per trace id, the trace is retired when this drops to zero
+   private AtomicLongArray pendingReferences;
 
    private LinkedBlockingQueue<Trace> finishedTraces = new LinkedBlockingQueue<Trace>(1000);
    private AtomicLongArray highestUnixTimestamps;
 
    private List<Processor> processors = new ArrayList<Processor>();
    private boolean reportMemoryUsage = false;
-   private int totalMessages;
+   private volatile long totalMessages;
    private boolean sortCausally = true;
    private long maxAdvanceMillis = 10000;
    private List<Predicate<Trace>> filters = new ArrayList<>();
    private long maxMessages = Long.MAX_VALUE;
    private long maxTraces = Long.MAX_VALUE;
+   private File offHeapDirectory;
+   // negative value means that the inputs are read twice
+   private long singlePassMargin = -1;
+   private LinkedBlockingQueue<ReadSpan> readSpans;
+   // messages from retired traces when composing in single pass
+   private volatile long consumedMessages;
    private Map<String, FlightRecording> flrBySource;
    private long injectedEvents = 0;
 
@@ -92,8 +103,35 @@ public class Composer extends Logic {
       }
       if (!joinAll(flrThreads)) return;
       flrBySource = flightRecordings.stream().collect(Collectors.toMap(flr -> getSource(flr.getInput().name()), Function.identity()));
+      if (singlePassMargin >= 0) {
+         runSinglePass();
+      } else {
+         runTwoPasses();
+      }
+   }
 
+   private void runSinglePass() {
+      System.err.println("Starting single pass");
+      highestUnixTimestamps = new AtomicLongArray(logs.size());
+      readSpans = new LinkedBlockingQueue<>(10000);
+      StreamingThread streamingThread = new StreamingThread(logs.size());
+      streamingThread.start();
+      SinglePassThread[] readers = new SinglePassThread[logs.size()];
+      for (int i = 0; i < logs.size(); ++i) {
+         SinglePassThread t = new SinglePassThread(logs.get(i), i);
+         readers[i] = t;
+         t.start();
+      }
+      ProcessorThread processorThread = new ProcessorThread(processors);
+      processorThread.start();
+      joinAll(readers);
+      joinAll(new Thread[] { streamingThread });
+      finishProcessing(processorThread);
+   }
+
+   private void runTwoPasses() {
       System.err.println("Starting first pass");
+      messageReferences = offHeapDirectory == null ? MessageReferenceTable.onHeap() : MessageReferenceTable.mapped(offHeapDirectory);
       FirstPassThread[] firstThreads = new FirstPassThread[logs.size()];
       for (int i = 0; i < logs.size(); ++i) {
          FirstPassThread t = new FirstPassThread(logs.get(i));
@@ -102,7 +140,9 @@ public class Composer extends Logic {
       }
       if (!joinAll(firstThreads)) return;
       totalMessages = messageReferences.size();
-      System.err.printf("Found %d messages\n", totalMessages);
+      System.err.printf("Found %d messages, %d of them referenced more than once\n", totalMessages, messageReferences.countersSize());
+      labelTraces();
+      System.err.printf("Found %d traces\n", traces.length());
       if (reportMemoryUsage) {
          reportMemoryUsage();
       }
@@ -117,6 +157,18 @@ public class Composer extends Logic {
       ProcessorThread processorThread = new ProcessorThread(processors);
       processorThread.start();
       joinAll(secondThreads);
+      finishProcessing(processorThread);
+      int unfinishedTraces = 0;
+      for (int i = 0; i < traces.length(); ++i) {
+         if (traces.get(i) != null) {
+            ++unfinishedTraces;
+         }
+      }
+      System.err.printf("Memory:\n\tmessage references: %d\n\ttraces: %d\n",
+                        messageReferences.size(), unfinishedTraces);
+   }
+
+   private void finishProcessing(ProcessorThread processorThread) {
       while (!finishedTraces.isEmpty()) {
          Thread.yield();
       }
@@ -125,8 +177,20 @@ public class Composer extends Logic {
          processorThread.join();
       } catch (InterruptedException e) {
       }
-      System.err.printf("Memory:\n\tmessage references: %d\n\ttraces: %d\n",
-                        messageReferences.size(), traces.size());
+   }
+
+   private void labelTraces() {
+      int nodes = messageReferences.nodes();
+      int traceCount = connectivity.label(nodes, messageReferences::contains);
+      traces = new AtomicReferenceArray<>(traceCount);
+      pendingReferences = new AtomicLongArray(traceCount);
+      for (int node = 0; node < nodes; ++node) {
+         int references = messageReferences.references(node);
+         if (references > 0) {
+            int traceId = connectivity.traceOf(node);
+            pendingReferences.lazySet(traceId, pendingReferences.get(traceId) + references);
+         }
+      }
    }
 
    private static void reportMemoryUsage() {
@@ -172,6 +236,22 @@ public class Composer extends Logic {
       this.maxTraces = maxTraces;
    }
 
+   /**
+    * @param offHeapDirectory Directory for memory-mapped message reference counters, null to keep them on heap
+    */
+   public void setOffHeapDirectory(File offHeapDirectory) {
+      this.offHeapDirectory = offHeapDirectory;
+   }
+
+   /**
+    * Read the inputs only once; trace is retired when all inputs have advanced by margin past its last event.
+    *
+    * @param singlePassMargin Margin in milliseconds, negative value to read the inputs twice
+    */
+   public void setSinglePassMargin(long singlePassMargin) {
+      this.singlePassMargin = singlePassMargin;
+   }
+
    private class FirstPassThread extends Thread {
       private Persister persister;
       private Map<Long, List<ThreadChange>> threadNames = new HashMap<>();
@@ -187,10 +267,16 @@ public class Composer extends Logic {
             persister.openForRead();
             try {
                persister.setSpanConsumer(span -> {
+                  int spanNode = -1;
                   for (MessageId msg : span.getMessages()) {
-                     AtomicInteger prev = messageReferences.putIfAbsent(msg, new AtomicInteger(1));
-                     if (prev != null) {
-                        prev.incrementAndGet();
+                     messageReferences.increment(msg);
+                     if (!span.isNonCausal()) {
+                        int node = messageReferences.node(msg);
+                        if (spanNode < 0) {
+                           spanNode = node;
+                        } else {
+                           connectivity.union(spanNode, node);
+                        }
                      }
                      int read = messagesRead.incrementAndGet();
                      if (read % 1000000 == 0) {
@@ -221,13 +307,17 @@ public class Composer extends Logic {
    }
 
    public class SecondPassThread extends Thread {
-      private final Map<Long, List<ThreadChange>> threadNames;
+      protected final Map<Long, List<ThreadChange>> threadNames;
       private final Persister persister;
-      private final int selfIndex;
+      protected final int selfIndex;
       private long highestUnixTimestamp = 0;
 
       public SecondPassThread(Persister persister, int selfIndex, Map<Long, List<ThreadChange>> threadNames) {
-         super("Second pass: " + persister.getInput().name());
+         this("Second pass: ", persister, selfIndex, threadNames);
+      }
+
+      protected SecondPassThread(String prefix, Persister persister, int selfIndex, Map<Long, List<ThreadChange>> threadNames) {
+         super(prefix + persister.getInput().name());
          this.persister = persister;
          this.selfIndex = selfIndex;
          this.threadNames = threadNames;
@@ -248,66 +338,44 @@ public class Composer extends Logic {
                persister.setSpanConsumer(span -> {
                   int spanId = spanCounter.getAndIncrement();
                   if (!span.isNonCausal()) {
-                     Trace trace = null;
-                     for (MessageId message : span.getMessages()) {
-                        if (trace == null) {
-                           trace = retrieveTraceFor(message);
-                        } else {
-                           Trace traceForThisMessage = traces.get(message);
-                           if (trace == traceForThisMessage) {
-                              // We have sent message to ourselves
-                           } else if (traceForThisMessage == null) {
-                              trace.addMessage(message);
-                              traceForThisMessage = traces.putIfAbsent(message, trace);
-                              if (traceForThisMessage != null) {
-                                 trace = mergeTraces(trace, message, traceForThisMessage);
-                              }
-                           } else {
-                              trace = mergeTraces(trace, message, traceForThisMessage);
-                           }
-                        }
-                        decrementMessageRefCount(message);
+                     Set<MessageId> messages = span.getMessages();
+                     EventStore events = span.getEventStore();
+                     List<Event> spanEvents = new ArrayList<>(events.size());
+                     for (int i = 0; i < events.size(); ++i) {
+                        long timestamp = events.timestamp(i);
+                        spanEvents.add(new Event(header.getNanoTime(), header.getUnixTime(), timestamp, source,
+                           spanId, getThreadName(events.threadId(i), timestamp), events.type(i), events.payload(i)));
                      }
-                     if (trace == null) {
-                        // no message associated, but tracked?
-                        trace = new Trace();
-//                        System.err.printf("%d K Locking %08x%n", Thread.currentThread().getId(), System.identityHashCode(trace.lock));
-                        trace.lock();
-//                        System.err.printf("%d K Locked %08x%n", Thread.currentThread().getId(), System.identityHashCode(trace.lock));
-                     }
-                     for (Span.LocalEvent event : span.getEvents()) {
-                        Event e = new Event(header.getNanoTime(), header.getUnixTime(), event.timestamp, source,
-                           spanId, getThreadName(event.threadId, event.timestamp), event.type, event.payload);
-                        trace.addEvent(e);
+                     compose(messages, spanEvents);
+                     for (Event e : spanEvents) {
                         checkAdvance(e.timestamp.getTime());
                      }
-                     tryRetire(trace);
                   } else {
-                     for (Span.LocalEvent event : span.getEvents()) {
-                        if (event.type == Event.Type.OUTCOMING_DATA_STARTED) {
-                           Message message = (Message) event.payload;
-                           Trace traceForThisMessage = retrieveTraceFor(message.id());
-                           Event e = new Event(header.getNanoTime(), header.getUnixTime(), event.timestamp,
-                              source, spanId, getThreadName(event.threadId, event.timestamp), Event.Type.RETRANSMISSION, event.payload);
-                           traceForThisMessage.addEvent(e);
-
-                           decrementMessageRefCount(message.id());
-                           tryRetire(traceForThisMessage);
+                     EventStore events = span.getEventStore();
+                     for (int i = 0; i < events.size(); ++i) {
+                        Event.Type type = events.type(i);
+                        if (type == Event.Type.OUTCOMING_DATA_STARTED) {
+                           Message message = (Message) events.payload(i);
+                           long timestamp = events.timestamp(i);
+                           Event e = new Event(header.getNanoTime(), header.getUnixTime(), timestamp,
+                              source, spanId, getThreadName(events.threadId(i), timestamp), Event.Type.RETRANSMISSION, message);
+                           composeRetransmission(message.id(), e);
                            checkAdvance(e.timestamp.getTime());
-                        } else if (event.type == Event.Type.TRACE_TAG) {
-                           System.err.println(String.format("Warning: Span with trace tag (%s) marked as non-causal (%s line %d)", event.payload, source, persister.getPosition()));
+                        } else if (type == Event.Type.TRACE_TAG) {
+                           System.err.println(String.format("Warning: Span with trace tag (%s) marked as non-causal (%s line %d)", events.payload(i), source, persister.getPosition()));
                         }
                      }
                   }
                }, true);
-               persister.setThreadChangeConsumer(tc -> {});
+               persister.setThreadChangeConsumer(this::threadChange);
                persister.read();
             } finally {
                persister.close();
             }
             // as we have finished reading, nobody should be blocked by our old timestamp
             highestUnixTimestamps.set(selfIndex, Long.MAX_VALUE);
-            System.err.println("Span counter second pass: " + spanCounter.get());
+            finished();
+            System.err.println(getName() + " span counter: " + spanCounter.get());
          } catch (IOException e) {
             System.err.println("Error reading " + persister + " due to " + e);
             e.printStackTrace();
@@ -315,6 +383,42 @@ public class Composer extends Logic {
          }
       }
 
+      protected void compose(Set<MessageId> messages, List<Event> spanEvents) {
+         if (messages.isEmpty()) {
+            // no message associated, but tracked?
+            Trace trace = new Trace();
+            spanEvents.forEach(trace::addEvent);
+            retire(trace);
+         } else {
+            int traceId = traceIdOf(messages.iterator().next());
+            Trace trace = traceFor(traceId);
+            synchronized (trace) {
+               messages.forEach(trace::addMessage);
+               spanEvents.forEach(trace::addEvent);
+            }
+            for (MessageId message : messages) {
+               decrementMessageRefCount(message);
+            }
+            release(traceId, trace, messages.size());
+         }
+      }
+
+      protected void composeRetransmission(MessageId message, Event event) {
+         int traceId = traceIdOf(message);
+         Trace trace = traceFor(traceId);
+         synchronized (trace) {
+            trace.addEvent(event);
+         }
+         decrementMessageRefCount(message);
+         release(traceId, trace, 1);
+      }
+
+      protected void threadChange(ThreadChange threadChange) {
+      }
+
+      protected void finished() {
+      }
+
       private String getThreadName(long threadId, long timestamp) {
          List<ThreadChange> threadChanges = threadNames.get(threadId);
          if (threadChanges == null) {
@@ -350,138 +454,31 @@ public class Composer extends Logic {
          }
       }
 
-      private Trace mergeTraces(Trace trace, MessageId message, Trace traceForThisMessage) {
-         // hopefully even if we merge the traces twice the result is still correct
-         for (;;) {
-//            System.err.printf("%d TryLocking %08x for %s%n", Thread.currentThread().getId(), System.identityHashCode(traceForThisMessage.lock), message);
-            if (traceForThisMessage.tryLock()) {
-               // check if we have really the right trace
-               Trace possiblyOtherTrace = traces.get(message);
-               if (possiblyOtherTrace != traceForThisMessage) {
-                  traceForThisMessage.unlock();
-                  if (possiblyOtherTrace == trace) {
-                     // Somebody had done the job for us when we have released trace.lock for a moment
-                     return trace;
-                  } else if (possiblyOtherTrace == null) {
-                     trace.unlock();
-                     throw new IllegalStateException();
-                  }
-                  traceForThisMessage = possiblyOtherTrace;
-               } else {
-                  try {
-                     if (traceForThisMessage.mergedInto != null) {
-                        trace.unlock();
-                        throw new IllegalStateException("in thread " + Thread.currentThread().getId());
-                     }
-
-                     for (MessageId msg : traceForThisMessage.messages) {
-                        if (traces.put(msg, trace) != traceForThisMessage) {
-                           trace.unlock();
-                           throw new IllegalStateException();
-                        }
-                        trace.addMessage(msg);
-                     }
-                     for (Event e : traceForThisMessage.events) {
-                        trace.addEvent(e);
-                     }
-
-                     traceForThisMessage.mergedInto = trace;
-                     trace.mergeCounter += traceForThisMessage.mergeCounter;
-                     break;
-                  } finally {
-                     traceForThisMessage.unlock();
-                  }
-               }
-            } else {
-               trace.mergeCounter++;
-               trace.unlock();
-//               Thread.yield();
-               LockSupport.parkNanos(1);
-               trace.lock();
-               trace.mergeCounter--;
-               while (trace.mergedInto != null) {
-                  Trace old = trace;
-                  trace = trace.mergedInto;
-                  old.unlock();
-                  trace.lock();
-                  // as the merge counter has been added during merge, we have to decrement it on the merged trace as well
-                  trace.mergeCounter--;
-               }
-               if (trace == traceForThisMessage) {
-                  return trace;
-               }
-            }
+      private int traceIdOf(MessageId message) {
+         int node = messageReferences.node(message);
+         if (node < 0) {
+            throw new IllegalStateException("Message " + message + " was not found in first pass");
          }
-         return trace;
+         return connectivity.traceOf(node);
       }
 
-      private Trace retrieveTraceFor(MessageId message) {
-         Trace trace = traces.get(message);
+      private Trace traceFor(int traceId) {
+         Trace trace = traces.get(traceId);
          if (trace == null) {
-            trace = new Trace();
-            trace.addMessage(message);
-            trace.lock();
-            Trace prev = traces.putIfAbsent(message, trace);
-            if (prev == null) {
-               return trace;
-            } else {
-               trace.unlock();
-               trace = prev;
-            }
-         }
-         for (;;) {
-//            System.err.printf("%d H Locking %08x for %s%n", Thread.currentThread().getId(), System.identityHashCode(trace.lock), message);
-            trace.lock();
-//            System.err.printf("%d H Locked %08x for %s%n", Thread.currentThread().getId(), System.identityHashCode(trace.lock), message);
-            Trace traceFromMap = traces.get(message);
-            if (traceFromMap == null) {
-               // removal from the map happens only when the trace is retired, therefore, no more
-               // references for the message are alive
-               trace.unlock();
-//               System.err.printf("%d I Unlocked %08x%n", Thread.currentThread().getId(), System.identityHashCode(trace.lock));
-               throw new IllegalStateException("in thread " + Thread.currentThread().getId());
-            }
-            if (traceFromMap != trace) {
-               trace.unlock();
-//               System.err.printf("%d J Unlocked %08x%n", Thread.currentThread().getId(), System.identityHashCode(trace.lock));
-               trace = traceFromMap;
-            } else {
-               break;
-            }
-         }
-         if (trace.mergedInto != null) {
-            throw new IllegalStateException();
+            Trace newTrace = new Trace();
+            trace = traces.compareAndSet(traceId, null, newTrace) ? newTrace : traces.get(traceId);
          }
          return trace;
       }
 
-       /**
-        * retire trace and remove all the trace references from the traces map
-        * if merge counter is not possitive and if messages from this trace are not in messageReferences
-        * @param trace
-        */
-      private void tryRetire(Trace trace) {
-         if (trace == null) return;
-         try {
-            if (trace.mergedInto != null) {
-               throw new IllegalStateException();
-            }
-            if (trace.mergeCounter > 0) return;
-            for (MessageId message : trace.messages) {
-               if (messageReferences.get(message) != null) {
-                  return;
-               }
-            }
-            for (MessageId message : trace.messages) {
-               traces.remove(message);
-            }
-            trace.retired = true;
-            retireTrace(trace);
-         } catch (InterruptedException e) {
-            System.err.println("Interrupted when adding to queue!");
-         } finally {
-            trace.unlock();
-//            System.err.printf("%d L Unlocked %08x%n", Thread.currentThread().getId(), System.identityHashCode(trace.lock));
+      /**
+       * Drops references to the trace; events must have been added before. The thread releasing
+       * the last reference retires the trace.
+       */
+      private void release(int traceId, Trace trace, int references) {
+         if (pendingReferences.addAndGet(traceId, -references) == 0) {
+            traces.set(traceId, null);
+            retire(trace);
          }
       }
    }
@@ -491,6 +488,15 @@ public class Composer extends Logic {
       return dotIndex < 0 ? name : name.substring(0, dotIndex);
    }
 
+   private void retire(Trace trace) {
+      trace.retired = true;
+      try {
+         retireTrace(trace);
+      } catch (InterruptedException e) {
+         System.err.println("Interrupted when adding to queue!");
+      }
+   }
+
    /**
      * Sort trace and put into finishedTraces
      * @param trace
@@ -568,13 +574,193 @@ public class Composer extends Logic {
    }
 
    private void decrementMessageRefCount(MessageId message) {
-      AtomicInteger counter = messageReferences.get(message);
-      if (counter == null) {
-         throw new IllegalStateException("No message counter for " + message);
+      messageReferences.decrement(message);
+   }
+
+   private long consumedMessages() {
+      return singlePassMargin >= 0 ? consumedMessages : totalMessages - messageReferences.size();
+   }
+
+   private static class ReadSpan {
+      final int input;
+      final Collection<MessageId> messages;
+      // null when the input has been read completely
+      final List<Event> events;
+
+      ReadSpan(int input, Collection<MessageId> messages, List<Event> events) {
+         this.input = input;
+         this.messages = messages;
+         this.events = events;
+      }
+   }
+
+   /**
+    * Reads one input in the single-pass mode and hands the spans over to {@link StreamingThread}.
+    */
+   private class SinglePassThread extends SecondPassThread {
+      SinglePassThread(Persister persister, int selfIndex) {
+         super("Single pass: ", persister, selfIndex, new HashMap<>());
+      }
+
+      @Override
+      protected void compose(Set<MessageId> messages, List<Event> spanEvents) {
+         enqueue(new ReadSpan(selfIndex, messages, spanEvents));
+      }
+
+      @Override
+      protected void composeRetransmission(MessageId message, Event event) {
+         enqueue(new ReadSpan(selfIndex, Collections.singleton(message), Collections.singletonList(event)));
+      }
+
+      @Override
+      protected void threadChange(ThreadChange threadChange) {
+         threadNames.computeIfAbsent(threadChange.getId(), id -> new ArrayList<>()).add(threadChange);
+      }
+
+      @Override
+      protected void finished() {
+         enqueue(new ReadSpan(selfIndex, null, null));
+      }
+
+      private void enqueue(ReadSpan span) {
+         try {
+            readSpans.put(span);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+         }
+      }
+   }
+
+   /**
+    * Composes traces from spans of all inputs in the single-pass mode. The watermark is the lowest of the highest
+    * timestamps composed from each input; trace is retired when the watermark gets singlePassMargin past its last
+    * event. Messages referenced after their trace has been retired are counted as late and start a new trace.
+    */
+   private class StreamingThread extends Thread {
+      private final Map<MessageId, OpenTrace> openTraces = new HashMap<>();
+      private final PriorityQueue<Deadline> deadlines = new PriorityQueue<>((d1, d2) -> Long.compare(d1.timestamp, d2.timestamp));
+      private final MessageBitmap seenMessages = new MessageBitmap();
+      private final long[] watermarks;
+      private long lateReferences;
+
+      private StreamingThread(int inputs) {
+         super("Streaming composer");
+         this.watermarks = new long[inputs];
       }
-      int refCount = counter.decrementAndGet();
-      if (refCount == 0) {
-         messageReferences.remove(message);
+
+      @Override
+      public void run() {
+         int activeInputs = watermarks.length;
+         try {
+            while (activeInputs > 0) {
+               ReadSpan span = readSpans.take();
+               if (span.events == null) {
+                  watermarks[span.input] = Long.MAX_VALUE;
+                  --activeInputs;
+               } else {
+                  compose(span);
+               }
+               long watermark = Long.MAX_VALUE;
+               for (long inputWatermark : watermarks) {
+                  watermark = Math.min(watermark, inputWatermark);
+               }
+               retireBefore(watermark - singlePassMargin);
+            }
+            retireBefore(Long.MAX_VALUE);
+         } catch (InterruptedException e) {
+            System.err.println("Streaming composer interrupted!");
+         }
+         System.err.printf("Single pass finished, %d messages, %d late message references\n", totalMessages, lateReferences);
+      }
+
+      private void compose(ReadSpan span) {
+         long lastTimestamp = watermarks[span.input];
+         for (Event event : span.events) {
+            lastTimestamp = Math.max(lastTimestamp, event.timestamp.getTime());
+         }
+         watermarks[span.input] = lastTimestamp;
+
+         OpenTrace trace = null;
+         for (MessageId message : span.messages) {
+            OpenTrace other = openTraces.get(message);
+            if (other == null) {
+               if (seenMessages.set(message)) {
+                  ++totalMessages;
+               } else {
+                  ++lateReferences;
+               }
+               if (trace == null) {
+                  trace = new OpenTrace();
+               }
+               trace.trace.addMessage(message);
+               openTraces.put(message, trace);
+            } else if (trace == null) {
+               trace = other;
+            } else if (trace != other) {
+               trace = merge(trace, other);
+            }
+         }
+         if (trace == null) {
+            // no message associated, but tracked?
+            Trace single = new Trace();
+            span.events.forEach(single::addEvent);
+            retire(single);
+            return;
+         }
+         span.events.forEach(trace.trace::addEvent);
+         trace.lastTimestamp = Math.max(trace.lastTimestamp, lastTimestamp);
+         if (trace.lastTimestamp > trace.scheduledTimestamp) {
+            trace.scheduledTimestamp = trace.lastTimestamp;
+            deadlines.add(new Deadline(trace.lastTimestamp, trace));
+         }
+      }
+
+      private OpenTrace merge(OpenTrace trace1, OpenTrace trace2) {
+         OpenTrace target = trace1.trace.events.size() >= trace2.trace.events.size() ? trace1 : trace2;
+         OpenTrace source = target == trace1 ? trace2 : trace1;
+         for (MessageId message : source.trace.messages) {
+            target.trace.addMessage(message);
+            openTraces.put(message, target);
+         }
+         source.trace.events.forEach(target.trace::addEvent);
+         target.lastTimestamp = Math.max(target.lastTimestamp, source.lastTimestamp);
+         source.closed = true;
+         return target;
+      }
+
+      private void retireBefore(long timestamp) {
+         while (!deadlines.isEmpty() && deadlines.peek().timestamp < timestamp) {
+            Deadline deadline = deadlines.poll();
+            OpenTrace trace = deadline.trace;
+            // the trace has been merged, retired or got newer events
+            if (trace.closed || trace.scheduledTimestamp != deadline.timestamp) {
+               continue;
+            }
+            trace.closed = true;
+            for (MessageId message : trace.trace.messages) {
+               openTraces.remove(message);
+            }
+            consumedMessages += trace.trace.messages.size();
+            retire(trace.trace);
+         }
+      }
+   }
+
+   private static class OpenTrace {
+      final Trace trace = new Trace();
+      long lastTimestamp = Long.MIN_VALUE;
+      long scheduledTimestamp = Long.MIN_VALUE;
+      boolean closed;
+   }
+
+   private static class Deadline {
+      final long timestamp;
+      final OpenTrace trace;
+
+      Deadline(long timestamp, OpenTrace trace) {
+         this.timestamp = timestamp;
+         this.trace = trace;
       }
    }
 
@@ -621,12 +807,12 @@ public class Composer extends Logic {
             if ((++traceCounter + filteredTraceCounter) % 10000 == 0) {
                System.err.printf("%s Processed %d traces (%d filtered out), %d/%d messages\n",
                   new SimpleDateFormat("HH:mm:ss").format(new Date()),
-                  traceCounter, filteredTraceCounter, totalMessages - messageReferences.size(), totalMessages);
+                  traceCounter, filteredTraceCounter, consumedMessages(), totalMessages);
                if (reportMemoryUsage) {
                   Composer.reportMemoryUsage();
                }
             }
-            if (totalMessages - messageReferences.size() > maxMessages) {
+            if (consumedMessages() > maxMessages) {
                System.err.println("Stopping because the limit of messages has been reached.");
                finish();
             } else if (traceCounter > maxTraces) {
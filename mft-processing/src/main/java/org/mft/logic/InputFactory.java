@@ -75,7 +75,8 @@ public class InputFactory {
             return Collections.<Input>singleton(new SFTPInput(username, hostpart, port, filename));
          }
       } else {
-         return Collections.<Input>singleton(new FileInput(location));
+         Input segments = SegmentedInput.find(location);
+         return Collections.<Input>singleton(segments != null ? segments : new FileInput(location));
       }
    }
 
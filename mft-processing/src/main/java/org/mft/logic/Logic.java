@@ -30,7 +30,9 @@ import org.mft.persistence.TextPersister;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * @author Radim Vansa &lt;rvansa@redhat.com&gt;
@@ -39,8 +41,13 @@ public abstract class Logic implements Runnable {
 
    protected List<Persister> logs = new ArrayList<>();
    protected List<FlightRecording> flightRecordings = new ArrayList<>();
+   // segments of one log may be listed several times
+   private Set<String> inputs = new HashSet<>();
 
    public void addInput(Input input) {
+      if (!inputs.add(input.toString())) {
+         return;
+      }
       byte[] magic = new byte[4];
       try {
          if (input.peek(magic) < magic.length) {
@@ -49,7 +56,7 @@ public abstract class Logic implements Runnable {
       } catch (IOException e) {
          throw new IllegalArgumentException("Cannot determine input type for " + input.name(), e);
       }
-      if (startsWith(magic, BinaryPersister.TAG)) {
+      if (startsWith(magic, BinaryPersister.TAG) || BinaryPersister.isSegmentTag(magic)) {
          logs.add(new BinaryPersister(input));
       } else if (startsWith(magic, TextPersister.TAG)) {
          logs.add(new TextPersister(input));
@@ -0,0 +1,162 @@
+package org.mft.logic;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.mft.objects.MessageId;
+
+/**
+ * One bit for each message id, grouped by sender. Identifiers are allocated sequentially on each node, so
+ * the pages (covering 65536 consecutive ids each) are mostly full; the pages are reached through two
+ * levels of 256-entry directories indexed by the upper bytes of the id and allocated on demand.
+ *
+ * Pages are numbered in the order of allocation, which gives each message a dense node index
+ * (page number followed by the lower 16 bits of the id) used for per-message arrays.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+class MessageBitmap {
+   static final int PAGE_BITS = 16;
+   private static final int PAGE_WORDS = 1 << (PAGE_BITS - 6);
+   private static final int DIRECTORY_SIZE = 1 << 8;
+   // node index is a non-negative int
+   static final int MAX_PAGES = 1 << (Integer.SIZE - 1 - PAGE_BITS);
+
+   private final AtomicReferenceArray<Sender> senders = new AtomicReferenceArray<>(1 << Short.SIZE);
+   private final AtomicReferenceArray<Page> pages = new AtomicReferenceArray<>(MAX_PAGES);
+   private volatile int pageCount;
+
+   /**
+    * @return True if the bit was not set before.
+    */
+   boolean set(MessageId message) {
+      int id = message.id();
+      Page page = page(message.from(), id, true);
+      int word = (id >>> 6) & (PAGE_WORDS - 1);
+      long mask = 1L << id;
+      for (;;) {
+         long current = page.bits.get(word);
+         if ((current & mask) != 0) {
+            return false;
+         } else if (page.bits.compareAndSet(word, current, current | mask)) {
+            return true;
+         }
+      }
+   }
+
+   /**
+    * @return True if the bit was set before.
+    */
+   boolean clear(MessageId message) {
+      int id = message.id();
+      Page page = page(message.from(), id, false);
+      if (page == null) {
+         return false;
+      }
+      int word = (id >>> 6) & (PAGE_WORDS - 1);
+      long mask = 1L << id;
+      for (;;) {
+         long current = page.bits.get(word);
+         if ((current & mask) == 0) {
+            return false;
+         } else if (page.bits.compareAndSet(word, current, current & ~mask)) {
+            return true;
+         }
+      }
+   }
+
+   /**
+    * @return Node index of the message or -1 if the message has never been set.
+    */
+   int node(MessageId message) {
+      int id = message.id();
+      Page page = page(message.from(), id, false);
+      return page == null ? -1 : (page.number << PAGE_BITS) | (id & ((1 << PAGE_BITS) - 1));
+   }
+
+   /**
+    * @return Upper bound (exclusive) of node indices.
+    */
+   int nodes() {
+      return pageCount << PAGE_BITS;
+   }
+
+   boolean get(int node) {
+      return pages.get(node >>> PAGE_BITS).get(node);
+   }
+
+   short from(int node) {
+      return pages.get(node >>> PAGE_BITS).from;
+   }
+
+   int id(int node) {
+      return pages.get(node >>> PAGE_BITS).base | (node & ((1 << PAGE_BITS) - 1));
+   }
+
+   private Page page(short from, int id, boolean create) {
+      int senderIndex = from & 0xFFFF;
+      Sender sender = senders.get(senderIndex);
+      if (sender == null) {
+         if (!create) {
+            return null;
+         }
+         senders.compareAndSet(senderIndex, null, new Sender());
+         sender = senders.get(senderIndex);
+      }
+      int directoryIndex = id >>> 24;
+      Directory directory = sender.directories.get(directoryIndex);
+      if (directory == null) {
+         if (!create) {
+            return null;
+         }
+         sender.directories.compareAndSet(directoryIndex, null, new Directory());
+         directory = sender.directories.get(directoryIndex);
+      }
+      int pageIndex = (id >>> PAGE_BITS) & (DIRECTORY_SIZE - 1);
+      Page page = directory.pages.get(pageIndex);
+      if (page == null) {
+         if (!create) {
+            return null;
+         }
+         // pages are allocated rarely, the lock keeps the numbering dense
+         synchronized (this) {
+            page = directory.pages.get(pageIndex);
+            if (page == null) {
+               if (pageCount == MAX_PAGES) {
+                  throw new IllegalStateException("Too many message id ranges");
+               }
+               page = new Page(from, id & -(1 << PAGE_BITS), pageCount);
+               pages.set(page.number, page);
+               directory.pages.set(pageIndex, page);
+               pageCount = page.number + 1;
+            }
+         }
+      }
+      return page;
+   }
+
+   private static final class Page {
+      private final short from;
+      private final int base;
+      private final int number;
+      private final AtomicLongArray bits = new AtomicLongArray(PAGE_WORDS);
+
+      private Page(short from, int base, int number) {
+         this.from = from;
+         this.base = base;
+         this.number = number;
+      }
+
+      private boolean get(int idOrNode) {
+         return (bits.get((idOrNode >>> 6) & (PAGE_WORDS - 1)) & (1L << idOrNode)) != 0;
+      }
+   }
+
+   private static final class Sender {
+      private final AtomicReferenceArray<Directory> directories = new AtomicReferenceArray<>(DIRECTORY_SIZE);
+   }
+
+   private static final class Directory {
+      private final AtomicReferenceArray<Page> pages = new AtomicReferenceArray<>(DIRECTORY_SIZE);
+   }
+}
@@ -0,0 +1,388 @@
+package org.mft.logic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mft.objects.MessageId;
+
+/**
+ * Number of references to each message. Most messages are referenced only once, so the first reference is
+ * recorded in a {@link MessageBitmap} and only the additional references are counted, keyed by {@link MessageId}
+ * packed into a long. The counting table is split into stripes with open addressing (linear probing); each stripe
+ * is locked and resized independently, so threads reading different logs rarely contend. An entry costs 12 bytes
+ * (up to twice that before the stripe is resized) instead of a map node, boxed id and counter.
+ *
+ * The slots are kept either in primitive arrays on heap or in memory-mapped scratch files, leaving the working
+ * set to the page cache. Keys are stored XORed with {@link #EMPTY} so that zeroed memory (and a fresh sparse
+ * file) represents empty slots.
+ *
+ * Counter entries are not removed when the count drops to zero, the key stays in place with zero count;
+ * this keeps the probe sequences intact without tombstones. The bit is cleared after the last reference.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+class MessageReferenceTable {
+   // MessageId.from() is a short so the upper 16 bits of a key are always a sign extension
+   private static final long EMPTY = Long.MIN_VALUE;
+   private static final int STRIPES = 256;
+   private static final int INITIAL_CAPACITY = 1024;
+   private static final float LOAD_FACTOR = 0.6f;
+   private static final int SLOT_SIZE = 12;
+   // mapped buffer is addressed by int
+   private static final int MAX_MAPPED_CAPACITY = Integer.highestOneBit(Integer.MAX_VALUE / SLOT_SIZE);
+
+   private final MessageBitmap referenced = new MessageBitmap();
+   private final Stripe[] stripes = new Stripe[STRIPES];
+   private final LongAdder live = new LongAdder();
+
+   private MessageReferenceTable() {
+   }
+
+   static MessageReferenceTable onHeap() {
+      MessageReferenceTable table = new MessageReferenceTable();
+      for (int i = 0; i < STRIPES; ++i) {
+         table.stripes[i] = new HeapStripe();
+      }
+      return table;
+   }
+
+   /**
+    * @param directory Directory for the scratch files; these are removed as soon as they are mapped.
+    */
+   static MessageReferenceTable mapped(File directory) {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+         throw new IllegalArgumentException("Cannot create directory " + directory);
+      }
+      MessageReferenceTable table = new MessageReferenceTable();
+      for (int i = 0; i < STRIPES; ++i) {
+         table.stripes[i] = new MappedStripe(directory, i);
+      }
+      return table;
+   }
+
+   static long key(MessageId message) {
+      return key(message.from(), message.id());
+   }
+
+   private static long key(short from, int id) {
+      return ((long) from << 32) | (id & 0xFFFFFFFFL);
+   }
+
+   private static long mix(long key) {
+      key ^= key >>> 33;
+      key *= 0xff51afd7ed558ccdL;
+      key ^= key >>> 33;
+      key *= 0xc4ceb9fe1a85ec53L;
+      key ^= key >>> 33;
+      return key;
+   }
+
+   private Stripe stripe(long hash) {
+      return stripes[(int) (hash >>> 56) & (STRIPES - 1)];
+   }
+
+   void increment(MessageId message) {
+      if (referenced.set(message)) {
+         live.increment();
+         return;
+      }
+      long key = key(message);
+      long hash = mix(key);
+      stripe(hash).increment(key ^ EMPTY, (int) hash);
+   }
+
+   /**
+    * @return Dense index of a message that has been referenced, -1 otherwise.
+    * @see MessageBitmap#node(MessageId)
+    */
+   int node(MessageId message) {
+      return referenced.node(message);
+   }
+
+   /**
+    * @return Upper bound (exclusive) of node indices.
+    */
+   int nodes() {
+      return referenced.nodes();
+   }
+
+   boolean contains(int node) {
+      return referenced.get(node);
+   }
+
+   /**
+    * @return Current number of references to the message with given node index.
+    */
+   int references(int node) {
+      if (!referenced.get(node)) {
+         return 0;
+      }
+      long key = key(referenced.from(node), referenced.id(node));
+      long hash = mix(key);
+      return 1 + stripe(hash).get(key ^ EMPTY, (int) hash);
+   }
+
+   /**
+    * @throws IllegalStateException if the message has no references.
+    */
+   void decrement(MessageId message) {
+      long key = key(message);
+      long hash = mix(key);
+      if (stripe(hash).decrement(key ^ EMPTY, (int) hash) >= 0) {
+         return;
+      } else if (referenced.clear(message)) {
+         live.decrement();
+      } else {
+         throw new IllegalStateException("No message counter for " + message);
+      }
+   }
+
+   /**
+    * @return Number of messages with non-zero count.
+    */
+   long size() {
+      return live.sum();
+   }
+
+   /**
+    * @return Number of messages that have been referenced more than once.
+    */
+   long countersSize() {
+      long size = 0;
+      for (Stripe stripe : stripes) {
+         size += stripe.used();
+      }
+      return size;
+   }
+
+   /**
+    * Open-addressing table over abstract slots; slot with stored key 0 is empty.
+    */
+   private abstract static class Stripe {
+      private int capacity;
+      private int used;
+      private int threshold;
+
+      protected abstract long storedKey(int index);
+
+      protected abstract int count(int index);
+
+      protected abstract void set(int index, long storedKey, int count);
+
+      protected abstract void setCount(int index, int count);
+
+      /**
+       * Replaces the slots with new zeroed slots, the previous ones are still accessible through
+       * {@link #storedKeyBefore(int)} and {@link #countBefore(int)} until {@link #release()}.
+       */
+      protected abstract void allocate(int capacity);
+
+      protected abstract void release();
+
+      protected abstract long storedKeyBefore(int index);
+
+      protected abstract int countBefore(int index);
+
+      protected void init() {
+         allocate(INITIAL_CAPACITY);
+         release();
+         capacity = INITIAL_CAPACITY;
+         threshold = (int) (capacity * LOAD_FACTOR);
+      }
+
+      private int find(long storedKey, int hash) {
+         int mask = capacity - 1;
+         int index = hash & mask;
+         long current;
+         while ((current = storedKey(index)) != 0 && current != storedKey) {
+            index = (index + 1) & mask;
+         }
+         return index;
+      }
+
+      synchronized int increment(long storedKey, int hash) {
+         int index = find(storedKey, hash);
+         if (storedKey(index) == 0) {
+            if (used >= threshold) {
+               resize();
+               index = find(storedKey, hash);
+            }
+            set(index, storedKey, 1);
+            ++used;
+            return 1;
+         }
+         int count = count(index) + 1;
+         setCount(index, count);
+         return count;
+      }
+
+      synchronized int get(long storedKey, int hash) {
+         int index = find(storedKey, hash);
+         return storedKey(index) == 0 ? 0 : count(index);
+      }
+
+      synchronized int used() {
+         return used;
+      }
+
+      /**
+       * @return Count after decrement or -1 if there was no reference.
+       */
+      synchronized int decrement(long storedKey, int hash) {
+         int index = find(storedKey, hash);
+         int count;
+         if (storedKey(index) == 0 || (count = count(index)) == 0) {
+            return -1;
+         }
+         setCount(index, --count);
+         return count;
+      }
+
+      private void resize() {
+         int oldCapacity = capacity;
+         allocate(oldCapacity << 1);
+         capacity = oldCapacity << 1;
+         threshold = (int) (capacity * LOAD_FACTOR);
+         for (int i = 0; i < oldCapacity; ++i) {
+            long storedKey = storedKeyBefore(i);
+            if (storedKey != 0) {
+               set(find(storedKey, (int) mix(storedKey ^ EMPTY)), storedKey, countBefore(i));
+            }
+         }
+         release();
+      }
+   }
+
+   private static final class HeapStripe extends Stripe {
+      private long[] keys, oldKeys;
+      private int[] counts, oldCounts;
+
+      HeapStripe() {
+         init();
+      }
+
+      @Override
+      protected long storedKey(int index) {
+         return keys[index];
+      }
+
+      @Override
+      protected int count(int index) {
+         return counts[index];
+      }
+
+      @Override
+      protected void set(int index, long storedKey, int count) {
+         keys[index] = storedKey;
+         counts[index] = count;
+      }
+
+      @Override
+      protected void setCount(int index, int count) {
+         counts[index] = count;
+      }
+
+      @Override
+      protected void allocate(int capacity) {
+         oldKeys = keys;
+         oldCounts = counts;
+         keys = new long[capacity];
+         counts = new int[capacity];
+      }
+
+      @Override
+      protected void release() {
+         oldKeys = null;
+         oldCounts = null;
+      }
+
+      @Override
+      protected long storedKeyBefore(int index) {
+         return oldKeys[index];
+      }
+
+      @Override
+      protected int countBefore(int index) {
+         return oldCounts[index];
+      }
+   }
+
+   /**
+    * Slot is a stored key followed by the count. Each resize maps a new file, the old mapping is released
+    * by GC as Java 8 cannot unmap explicitly; the file itself is deleted right after it is mapped.
+    */
+   private static final class MappedStripe extends Stripe {
+      private final File directory;
+      private final int id;
+      private int generation;
+      private MappedByteBuffer buffer, oldBuffer;
+
+      MappedStripe(File directory, int id) {
+         this.directory = directory;
+         this.id = id;
+         init();
+      }
+
+      @Override
+      protected long storedKey(int index) {
+         return buffer.getLong(index * SLOT_SIZE);
+      }
+
+      @Override
+      protected int count(int index) {
+         return buffer.getInt(index * SLOT_SIZE + 8);
+      }
+
+      @Override
+      protected void set(int index, long storedKey, int count) {
+         buffer.putLong(index * SLOT_SIZE, storedKey);
+         buffer.putInt(index * SLOT_SIZE + 8, count);
+      }
+
+      @Override
+      protected void setCount(int index, int count) {
+         buffer.putInt(index * SLOT_SIZE + 8, count);
+      }
+
+      @Override
+      protected void allocate(int capacity) {
+         if (capacity > MAX_MAPPED_CAPACITY) {
+            throw new IllegalStateException("Too many messages in stripe " + id);
+         }
+         File file = new File(directory, "references." + id + "." + generation++);
+         try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // the file is sparse, the slots read as zeroes
+            raf.setLength((long) capacity * SLOT_SIZE);
+            oldBuffer = buffer;
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * SLOT_SIZE);
+            buffer.order(ByteOrder.nativeOrder());
+         } catch (IOException e) {
+            throw new IllegalStateException("Cannot map " + file, e);
+         } finally {
+            if (!file.delete()) {
+               file.deleteOnExit();
+            }
+         }
+      }
+
+      @Override
+      protected void release() {
+         oldBuffer = null;
+      }
+
+      @Override
+      protected long storedKeyBefore(int index) {
+         return oldBuffer.getLong(index * SLOT_SIZE);
+      }
+
+      @Override
+      protected int countBefore(int index) {
+         return oldBuffer.getInt(index * SLOT_SIZE + 8);
+      }
+   }
+}
@@ -0,0 +1,89 @@
+package org.mft.logic;
+
+import org.mft.persistence.BinaryPersister;
+import org.mft.persistence.Input;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Binary span log rolled over into files prefix.0.bin, prefix.1.bin... presented as single input.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+public class SegmentedInput implements Input {
+   private static final Pattern SEGMENT_NAME = Pattern.compile("(.*)\\.\\d+\\.bin");
+
+   private final String pathPrefix;
+   private final List<Input> segments;
+
+   private SegmentedInput(String pathPrefix, List<Input> segments) {
+      this.pathPrefix = pathPrefix;
+      this.segments = segments;
+   }
+
+   /**
+    * @param location Either any of the segments or the path without segment number.
+    * @return Input with all segments or null if the location does not belong to segmented log.
+    */
+   public static SegmentedInput find(String location) {
+      String pathPrefix;
+      Matcher matcher = SEGMENT_NAME.matcher(location);
+      if (matcher.matches() && isSegment(location)) {
+         pathPrefix = matcher.group(1);
+      } else if (location.endsWith(".bin") && !new File(location).exists()) {
+         pathPrefix = location.substring(0, location.length() - 4);
+      } else {
+         return null;
+      }
+      List<Input> segments = new ArrayList<>();
+      for (int i = 0; ; ++i) {
+         String path = BinaryPersister.segmentPath(pathPrefix, i);
+         if (!isSegment(path)) break;
+         segments.add(new FileInput(path));
+      }
+      return segments.isEmpty() ? null : new SegmentedInput(pathPrefix, Collections.unmodifiableList(segments));
+   }
+
+   private static boolean isSegment(String path) {
+      byte[] magic = new byte[BinaryPersister.SEGMENT_TAG.length];
+      try (FileInputStream stream = new FileInputStream(path)) {
+         return stream.read(magic) == magic.length && BinaryPersister.isSegmentTag(magic);
+      } catch (IOException e) {
+         return false;
+      }
+   }
+
+   @Override
+   public int peek(byte[] bytes) throws IOException {
+      return segments.get(0).peek(bytes);
+   }
+
+   @Override
+   public String name() {
+      // the same name as the agent was configured with, source is derived from it
+      return new File(pathPrefix).getName() + ".bin";
+   }
+
+   @Override
+   public InputStream stream() throws IOException {
+      return segments.get(0).stream();
+   }
+
+   @Override
+   public List<Input> segments() {
+      return segments;
+   }
+
+   @Override
+   public String toString() {
+      return new File(pathPrefix).getAbsolutePath() + ".*.bin";
+   }
+}
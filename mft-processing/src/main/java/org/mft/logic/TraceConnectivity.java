@@ -0,0 +1,103 @@
+package org.mft.logic;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntPredicate;
+
+/**
+ * Concurrent union-find over message node indices (see {@link MessageBitmap}); messages referenced from one span
+ * belong to the same trace. Roots are linked without locks, always the root with the higher index below the lower
+ * one, and paths are halved during lookups. Therefore a parent has always lower index than its child.
+ * After all spans have been read {@link #label(int, IntPredicate)} replaces the parents with dense trace ids.
+ *
+ * @author Radim Vansa &lt;rvansa@redhat.com&gt;
+ */
+class TraceConnectivity {
+   private static final int PAGE_SIZE = 1 << MessageBitmap.PAGE_BITS;
+
+   // 0 stands for root, positive value is parent + 1 and after labeling the value is ~trace
+   private final AtomicReferenceArray<AtomicIntegerArray> parents = new AtomicReferenceArray<>(MessageBitmap.MAX_PAGES);
+
+   private AtomicIntegerArray page(int node) {
+      int index = node >>> MessageBitmap.PAGE_BITS;
+      AtomicIntegerArray page = parents.get(index);
+      if (page == null) {
+         parents.compareAndSet(index, null, new AtomicIntegerArray(PAGE_SIZE));
+         page = parents.get(index);
+      }
+      return page;
+   }
+
+   private int parent(int node) {
+      int value = page(node).get(node & (PAGE_SIZE - 1));
+      return value == 0 ? node : value - 1;
+   }
+
+   private boolean replaceParent(int node, int expected, int parent) {
+      return page(node).compareAndSet(node & (PAGE_SIZE - 1), expected == node ? 0 : expected + 1, parent + 1);
+   }
+
+   private int find(int node) {
+      for (;;) {
+         int parent = parent(node);
+         if (parent == node) {
+            return node;
+         }
+         int grandParent = parent(parent);
+         if (grandParent != parent) {
+            // losing the race only means that someone else has shortened the path
+            replaceParent(node, parent, grandParent);
+         }
+         node = grandParent;
+      }
+   }
+
+   void union(int node1, int node2) {
+      for (;;) {
+         int root1 = find(node1);
+         int root2 = find(node2);
+         if (root1 == root2) {
+            return;
+         } else if (root1 > root2) {
+            if (replaceParent(root1, root1, root2)) {
+               return;
+            }
+         } else if (replaceParent(root2, root2, root1)) {
+            return;
+         }
+      }
+   }
+
+   /**
+    * Assigns trace ids in order of their lowest node. Must not run concurrently with {@link #union(int, int)}.
+    *
+    * @param nodes Upper bound of node indices
+    * @param present Nodes of messages that have been referenced
+    * @return Number of traces.
+    */
+   int label(int nodes, IntPredicate present) {
+      int traces = 0;
+      for (int node = 0; node < nodes; ++node) {
+         if (!present.test(node)) {
+            continue;
+         }
+         AtomicIntegerArray page = page(node);
+         int value = page.get(node & (PAGE_SIZE - 1));
+         if (value == 0) {
+            page.set(node & (PAGE_SIZE - 1), ~traces++);
+         } else {
+            // parent has lower index and has been labeled already
+            int parent = value - 1;
+            page.set(node & (PAGE_SIZE - 1), page(parent).get(parent & (PAGE_SIZE - 1)));
+         }
+      }
+      return traces;
+   }
+
+   /**
+    * @return Trace id of the node, valid only after {@link #label(int, IntPredicate)}.
+    */
+   int traceOf(int node) {
+      return ~page(node).get(node & (PAGE_SIZE - 1));
+   }
+}
@@ -23,10 +23,6 @@
 package org.mft.objects;
 
 import java.util.*;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -39,35 +35,6 @@ public class Trace {
    public Set<MessageId> messages = new HashSet<>();
    public int negativeCycles = 0;
    public volatile boolean retired = false;
-   public int mergeCounter = 0;
-   public Trace mergedInto = null;
-
-   // this lock both against internal manipulation AND removing/replacing in messageFlows
-   private final Lock lock = new ReentrantLock();
-
-   public void lock() {
-      try {
-         if (lock.tryLock(5, TimeUnit.SECONDS)) {
-         } else {
-            throw new RuntimeException(new TimeoutException());
-         }
-      } catch (InterruptedException e) {
-         Thread.currentThread().interrupt();
-         throw new IllegalStateException(e);
-      }
-   }
-
-   public boolean tryLock() {
-      if (lock.tryLock()) {
-         return true;
-      } else {
-         return false;
-      }
-   }
-
-   public void unlock() {
-      lock.unlock();
-   }
 
    public void addMessage(MessageId msg) {
       messages.add(msg);
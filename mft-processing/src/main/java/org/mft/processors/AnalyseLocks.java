@@ -89,14 +89,16 @@ public class AnalyseLocks implements Processor {
                }
             }
          } else if (text.startsWith("LOCK_ALL_OK")) {
+            // each key has its own LOCK_ALL checkpoint right before
             for (int j = i - 1; j >= 0; --j) {
                Event other = events[j];
-               if (other.type == Event.Type.CHECKPOINT && other.source == e.source && other.threadName.equals(e.threadName)
-                  && other.payload != null && ((String) other.payload).startsWith("LOCK_ALL ")) {
-                  for (String key : parseKeys(((String) other.payload))) {
-                     setLockCompleted(lockings, finished, e, key, true);
-                     break;
-                  }
+               if (other.type != Event.Type.CHECKPOINT || other.source != e.source || !other.threadName.equals(e.threadName)) {
+                  continue;
+               } else if (other.payload == null || !((String) other.payload).startsWith("LOCK_ALL ")) {
+                  break;
+               }
+               for (String key : parseKeys(((String) other.payload))) {
+                  setLockCompleted(lockings, finished, e, key, true);
                }
             }
          } else if (text.startsWith("UNLOCK")) {
@@ -169,6 +171,11 @@ public class AnalyseLocks implements Processor {
 
    public String[] parseKeys(String string) {
       int openBracket = string.indexOf('[');
+      int space = string.indexOf(' ');
+      if (openBracket < 0 && space >= 0) {
+         // single key, such as the key hash in "UNLOCK #1a2b3c"
+         return new String[] { string.substring(space + 1).trim() };
+      }
       int closeBracket = string.indexOf(']');
       if (openBracket < 0 || closeBracket < 0 || openBracket >= closeBracket) {
          throw new IllegalStateException("brackets don't match");
@@ -179,6 +186,10 @@ public class AnalyseLocks implements Processor {
       return keys.split(",");
    }
 
+   /**
+    * Keys are recorded by their hash code (e.g. "LOCK #1a2b3c"), two different keys with the same hash
+    * are treated as one key.
+    */
    private String parseKey(String string) {
       return string.substring(5).trim();
    }